@@ -0,0 +1,196 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Builds the data the benchmarks run on, with the node's own classes (see chint.bench.NodeApi for why this one
+ * class lives in the unnamed package). Everything expensive happens here, outside the measured code.
+*/
+import chint.bench.NodeApi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+public class BenchFixtures implements NodeApi {
+    //Blockchain's proof of work target is that many leading zero hex digits.
+    private static final int DIFFICULTY = Blockchain.target().length();
+
+    @Override
+    public String sha256 (String input) {
+        return HashUtil.sha256(input);
+    }
+
+    @Override
+    public String sha256 (byte[] data) {
+        return HashUtil.sha256(data);
+    }
+
+    @Override
+    public String blockHash (int index, String prevHash, long timestamp, String txData, int nonce) {
+        return Block.computeHash(index, prevHash, timestamp, txData, nonce);
+    }
+
+    @Override
+    public Tx transaction (int inputs, int outputs) throws Exception {
+        KeyPair keys = newKeys();
+
+        List<TransactionInput> ins = new ArrayList<>();
+        for (int i = 0; i < inputs; i++) ins.add(new TransactionInput("bench-" + i));
+
+        List<TransactionOutput> outs = new ArrayList<>();
+        for (int i = 0; i < outputs; i++) outs.add(new TransactionOutput(keys.getPublic(), 1));
+
+        Transaction tx = new Transaction(keys.getPublic(), ins, outs);
+        tx.sign(keys.getPrivate());
+
+        return new Tx() {
+            @Override
+            public void sign () throws Exception {
+                tx.sign(keys.getPrivate());
+            }
+
+            @Override
+            public boolean verify () throws Exception {
+                return tx.verify();
+            }
+
+            @Override
+            public byte[] serialize () {
+                return SerializationUtil.serialize(tx);
+            }
+        };
+    }
+
+    @Override
+    public BlockFixture block (int txCount) throws Exception {
+        KeyPair keys = newKeys();
+        Blockchain genesisOnly = new Blockchain();
+        Block genesis = genesisOnly.getLatestBlock();
+
+        //A funding block (trusted, so never mined) that gives our key one coin per transaction to spend.
+        Block funding = new Block(1, genesis.hash);
+        List<TransactionOutput> coins = new ArrayList<>();
+        for (int i = 0; i < txCount; i++) coins.add(new TransactionOutput(keys.getPublic(), 1));
+        funding.transactions.add(new Transaction(keys.getPublic(), List.of(), coins));
+        funding.hash = funding.computeHash();
+
+        ArrayList<Block> base = new ArrayList<>(List.of(genesis, funding));
+
+        //The block being measured: a coinbase plus txCount signed payments.
+        PublicKey payee = newKeys().getPublic();
+        Block block = new Block(2, funding.hash);
+        block.transactions.add(new Transaction(keys.getPublic(), List.of(), List.of(new TransactionOutput(keys.getPublic(), 1))));
+        for (TransactionOutput coin : coins) {
+            Transaction tx = new Transaction(keys.getPublic(), List.of(new TransactionInput(coin.id)), List.of(new TransactionOutput(payee, 1)));
+            tx.sign(keys.getPrivate());
+            block.transactions.add(tx);
+        }
+        mine(block);
+
+        if (!new Blockchain(new ArrayList<>(base)).tryAddBlock(block)) {
+            throw new IllegalStateException("the chain rejected the benchmark block");
+        }
+
+        return new BlockFixture() {
+            private Blockchain chain;
+
+            @Override
+            public void reset () {
+                chain = new Blockchain(new ArrayList<>(base));
+            }
+
+            @Override
+            public boolean tryAddBlock () throws Exception {
+                return chain.tryAddBlock(block);
+            }
+        };
+    }
+
+    @Override
+    public History history (int blocks, int txsPerBlock) throws Exception {
+        PublicKey owner = newKeys().getPublic();
+        Blockchain chain = new Blockchain();
+
+        //Every transaction spends the oldest unspent output and creates two, so the UTXO set keeps growing and
+        //shrinking the way it would on a real chain.
+        ArrayList<Block> history = new ArrayList<>(List.of(chain.getLatestBlock()));
+        Deque<String> unspent = new ArrayDeque<>();
+
+        for (int height = 1; height < blocks; height++) {
+            Block block = new Block(height, history.get(height - 1).hash);
+
+            TransactionOutput reward = new TransactionOutput(owner, 1);
+            block.transactions.add(new Transaction(owner, List.of(), List.of(reward)));
+            unspent.add(reward.id);
+
+            for (int i = 0; i < txsPerBlock && !unspent.isEmpty(); i++) {
+                List<TransactionOutput> outs = List.of(new TransactionOutput(owner, 1), new TransactionOutput(owner, 1));
+                block.transactions.add(new Transaction(owner, List.of(new TransactionInput(unspent.poll())), outs));
+                for (TransactionOutput out : outs) unspent.add(out.id);
+            }
+
+            block.hash = block.computeHash();
+            history.add(block);
+        }
+
+        Blockchain loaded = new Blockchain(history);
+        return new History() {
+            @Override
+            public void rebuildUTXO () {
+                loaded.rebuildUTXO();
+            }
+
+            @Override
+            public void saveToDisk (Path file) {
+                loaded.saveToDisk(file.toString());
+            }
+
+            @Override
+            public int loadFromDisk (Path file) {
+                return Blockchain.loadFromDisk(file.toString()).length();
+            }
+        };
+    }
+
+    private static KeyPair newKeys () throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    //Same result as Blockchain's miner, but the nonce comes last in the hashed string, so we hash everything before
+    //it once and only the nonce per attempt. Otherwise mining a 1000 transaction block would take minutes.
+    private static void mine (Block block) throws Exception {
+        StringBuilder txData = new StringBuilder();
+        for (Transaction tx : block.transactions) txData.append(tx.txId);
+
+        MessageDigest prefix = MessageDigest.getInstance("SHA-256");
+        prefix.update((block.index + block.prevHash + block.timestamp + txData).getBytes(StandardCharsets.UTF_8));
+
+        for (int nonce = 0; ; nonce++) {
+            MessageDigest digest = (MessageDigest) prefix.clone();
+            byte[] hash = digest.digest(Integer.toString(nonce).getBytes(StandardCharsets.UTF_8));
+            if (leadingZeroDigits(hash) >= DIFFICULTY) {
+                block.nonce = nonce;
+                block.hash = block.computeHash();
+                return;
+            }
+        }
+    }
+
+    private static int leadingZeroDigits (byte[] hash) {
+        int zeros = 0;
+        for (byte b : hash) {
+            if ((b & 0xF0) != 0) return zeros;
+            if ((b & 0x0F) != 0) return zeros + 1;
+            zeros += 2;
+        }
+        return zeros;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Entry point of benchmarks.jar. Takes the usual JMH options (java -jar benchmarks.jar -h), and after a run writes,
+ * besides JMH's own JSON, a plain text summary with one sorted, tab separated line per benchmark and parameters:
+ *     java -jar bench/target/benchmarks.jar                   -> jmh-result.json, jmh-result.txt
+ *     java -jar bench/target/benchmarks.jar -rff before.json   -> before.json, before.txt
+ * Summaries of two builds can be compared with plain diff, or side by side with the change in percent:
+ *     java -jar bench/target/benchmarks.jar --compare before.txt after.txt
+*/
+package chint.bench;
+
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+public class BenchmarkMain {
+    public static void main (String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--compare")) {
+            if (args.length != 3) {
+                System.out.println("Usage: --compare <before.txt> <after.txt>");
+                System.exit(1);
+            }
+            compare(Path.of(args[1]), Path.of(args[2]));
+            return;
+        }
+
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        if (cli.shouldList() || cli.shouldListWithParams()) {
+            new Runner(cli).list();
+            return;
+        }
+
+        ResultFormatType format = cli.getResultFormat().orElse(ResultFormatType.JSON);
+        String result = cli.getResult().orElse("jmh-result." + format.toString().toLowerCase(Locale.ROOT));
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli).resultFormat(format).result(result);
+
+        Collection<RunResult> results = new Runner(options.build()).run();
+
+        Path summary = Path.of(result.replaceFirst("\\.[^./\\\\]*$", "") + ".txt");
+        if (summary.toString().equals(result)) summary = Path.of(result + ".summary");
+        Files.write(summary, summarize(results));
+        System.out.println("Summary written to " + summary);
+    }
+
+    //One line per benchmark and parameter set: name, params, mode, score, error, unit. Sorted, so two summaries line
+    //up under diff no matter in which order the benchmarks ran.
+    private static List<String> summarize (Collection<RunResult> results) {
+        List<String> lines = new ArrayList<>();
+        for (RunResult run : results) {
+            Result<?> primary = run.getPrimaryResult();
+
+            StringBuilder params = new StringBuilder();
+            for (String key : run.getParams().getParamsKeys()) {
+                if (params.length() > 0) params.append(',');
+                params.append(key).append('=').append(run.getParams().getParam(key));
+            }
+
+            lines.add(String.join("\t",
+                    run.getParams().getBenchmark(),
+                    params.length() == 0 ? "-" : params.toString(),
+                    run.getParams().getMode().shortLabel(),
+                    String.format(Locale.ROOT, "%.3f", primary.getScore()),
+                    String.format(Locale.ROOT, "%.3f", primary.getScoreError()),
+                    primary.getScoreUnit()));
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static void compare (Path before, Path after) throws IOException {
+        Map<String, String[]> old = read(before);
+        Map<String, String[]> now = read(after);
+
+        Set<String> keys = new TreeSet<>(old.keySet());
+        keys.addAll(now.keySet());
+
+        System.out.printf("%-60s %-24s %14s %14s %9s%n", "Benchmark", "Params", "Before", "After", "Change");
+        for (String key : keys) {
+            String[] a = old.get(key);
+            String[] b = now.get(key);
+            String[] any = a != null ? a : b;
+
+            String change = "-";
+            if (a != null && b != null) {
+                double x = Double.parseDouble(a[3]);
+                double y = Double.parseDouble(b[3]);
+                if (x != 0) change = String.format(Locale.ROOT, "%+.1f%%", (y - x) * 100 / x);
+            }
+
+            System.out.printf("%-60s %-24s %14s %14s %9s%n", any[0], any[1],
+                    a == null ? "-" : a[3] + " " + a[5], b == null ? "-" : b[3] + " " + b[5], change);
+        }
+    }
+
+    //Summary lines by benchmark, params and mode.
+    private static Map<String, String[]> read (Path file) throws IOException {
+        Map<String, String[]> rows = new HashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            String[] fields = line.split("\t");
+            if (fields.length < 6) continue;
+            rows.put(fields[0] + "\t" + fields[1] + "\t" + fields[2], fields);
+        }
+        return rows;
+    }
+}
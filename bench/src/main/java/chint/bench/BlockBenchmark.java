@@ -0,0 +1,40 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Blockchain.tryAddBlock for blocks of different sizes: PoW check, signature and UTXO checks for every transaction,
+ * then applying it. The chain is put back before every call, so each one connects the same block again.
+*/
+package chint.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockBenchmark {
+    //Transactions per block, coinbase not counted.
+    @Param({"1", "10", "100", "1000"})
+    public int txs;
+
+    private NodeApi.BlockFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setup () throws Exception {
+        fixture = NodeApi.load().block(txs);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset () {
+        fixture.reset();
+    }
+
+    @Benchmark
+    public boolean tryAddBlock () throws Exception {
+        return fixture.tryAddBlock();
+    }
+}
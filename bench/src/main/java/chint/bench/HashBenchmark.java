@@ -0,0 +1,54 @@
+/*
+ * Gavin MacFadyen
+ *
+ * SHA-256 as the node uses it: on strings (block hashes, mining), on serialized bytes (txIds), and the full block
+ * hash a miner computes once per nonce.
+*/
+package chint.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+    //Bytes hashed. 64 is one txId, 6400 roughly the txData of a 100 transaction block.
+    @Param({"64", "6400"})
+    public int size;
+
+    private NodeApi node;
+    private String text;
+    private byte[] bytes;
+    private String txData;
+    private String prevHash;
+    private int nonce;
+
+    @Setup
+    public void setup () {
+        node = NodeApi.load();
+        text = "a".repeat(size);
+        bytes = new byte[size];
+        txData = "f".repeat(size);
+        prevHash = "0".repeat(64);
+    }
+
+    @Benchmark
+    public String sha256String () {
+        return node.sha256(text);
+    }
+
+    @Benchmark
+    public String sha256Bytes () {
+        return node.sha256(bytes);
+    }
+
+    @Benchmark
+    public String blockComputeHash () {
+        return node.blockHash(42, prevHash, 1_700_000_000_000L, txData, nonce++);
+    }
+}
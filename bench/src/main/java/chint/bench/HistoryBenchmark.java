@@ -0,0 +1,63 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Work that grows with the length of the chain: rebuilding the UTXO set (startup, reorgs) and writing and reading
+ * the chain file.
+*/
+package chint.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+    @Param({"1000", "10000"})
+    public int blocks;
+
+    //Transactions per block besides the coinbase.
+    @Param({"10"})
+    public int txsPerBlock;
+
+    private NodeApi.History history;
+    private Path saved;
+    private Path scratch;
+
+    @Setup(Level.Trial)
+    public void setup () throws Exception {
+        history = NodeApi.load().history(blocks, txsPerBlock);
+
+        saved = Files.createTempFile("chint-bench-load", ".dat");
+        scratch = Files.createTempFile("chint-bench-save", ".dat");
+        history.saveToDisk(saved);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup () throws IOException {
+        Files.deleteIfExists(saved);
+        Files.deleteIfExists(scratch);
+    }
+
+    @Benchmark
+    public void rebuildUTXO () {
+        history.rebuildUTXO();
+    }
+
+    @Benchmark
+    public void saveToDisk () {
+        history.saveToDisk(scratch);
+    }
+
+    @Benchmark
+    public int loadFromDisk () {
+        return history.loadFromDisk(saved);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Gavin MacFadyen
+ *
+ * What the benchmarks need from the node. The node's classes live in the unnamed package, which code in a named
+ * package can't refer to (and JMH only accepts benchmarks in a named package), so BenchFixtures, which sits in the
+ * unnamed package next to them, implements this interface and the benchmarks only ever talk to it through here.
+ * Only the setup goes through an extra call, the measured code is the node's own.
+*/
+package chint.bench;
+
+import java.nio.file.Path;
+
+public interface NodeApi {
+    String sha256 (String input);
+    String sha256 (byte[] data);
+    String blockHash (int index, String prevHash, long timestamp, String txData, int nonce);
+
+    //A transaction from a fresh key, spending that many inputs into that many outputs, already signed (so verify
+    //works right away, and sign measures signing it again).
+    Tx transaction (int inputs, int outputs) throws Exception;
+
+    //A chain plus a mined block with txCount signed transactions that fits on top of it.
+    BlockFixture block (int txCount) throws Exception;
+
+    //A chain of that many (unmined) blocks, each with a coinbase and txsPerBlock transactions.
+    History history (int blocks, int txsPerBlock) throws Exception;
+
+    interface Tx {
+        void sign () throws Exception;
+        boolean verify () throws Exception;
+        byte[] serialize ();
+    }
+
+    interface BlockFixture {
+        //Puts back the chain the block was mined on, so the next tryAddBlock connects it again.
+        void reset ();
+        boolean tryAddBlock () throws Exception;
+    }
+
+    interface History {
+        void rebuildUTXO ();
+        void saveToDisk (Path file);
+        //Returns the loaded chain's length, so the load can't be optimised away.
+        int loadFromDisk (Path file);
+    }
+
+    static NodeApi load () {
+        try {
+            return (NodeApi) Class.forName("BenchFixtures").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchFixtures is missing from the benchmark jar", e);
+        }
+    }
+}
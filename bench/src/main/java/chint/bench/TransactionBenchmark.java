@@ -0,0 +1,45 @@
+/*
+ * Gavin MacFadyen
+ *
+ * The per-transaction costs: RSA signing (wallet), verifying (every node, for every tx it sees) and Java
+ * serialization (txIds, frames, the chain file).
+*/
+package chint.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+    //A plain payment, and a batch payout.
+    @Param({"1", "100"})
+    public int outputs;
+
+    private NodeApi.Tx tx;
+
+    @Setup
+    public void setup () throws Exception {
+        tx = NodeApi.load().transaction(1, outputs);
+    }
+
+    @Benchmark
+    public void sign () throws Exception {
+        tx.sign();
+    }
+
+    @Benchmark
+    public boolean verify () throws Exception {
+        return tx.verify();
+    }
+
+    @Benchmark
+    public byte[] serialize () {
+        return tx.serialize();
+    }
+}
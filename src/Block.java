@@ -33,6 +33,11 @@ public class Block implements Serializable {
             txData.append(tx.txId);
         }
 
+        return computeHash(index, prevHash, timestamp, txData.toString(), nonce);
+    }
+
+    //Shared with BlockHeader, which only knows the txIds.
+    public static String computeHash(int index, String prevHash, long timestamp, String txData, int nonce) {
         return HashUtil.sha256(index + prevHash + timestamp + txData + nonce);
     }
 }
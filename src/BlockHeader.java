@@ -0,0 +1,38 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Everything about a block except the transactions themselves. Since a block's hash covers the txIds (not the full
+ * transactions), a header keeps the txIds so anyone can recompute the hash and check its proof of work without
+ * downloading the block. Used for headers-first sync.
+*/
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BlockHeader implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final int index;
+    public final long timestamp;
+    public final int nonce;
+    public final String prevHash;
+    public final String hash;
+    public final List<String> txIds;
+
+    public BlockHeader (Block block) {
+        this.index = block.index;
+        this.timestamp = block.timestamp;
+        this.nonce = block.nonce;
+        this.prevHash = block.prevHash;
+        this.hash = block.hash;
+        this.txIds = new ArrayList<>();
+
+        for (Transaction tx : block.transactions) {
+            txIds.add(tx.txId);
+        }
+    }
+
+    public String computeHash() {
+        return Block.computeHash(index, prevHash, timestamp, String.join("", txIds), nonce);
+    }
+}
@@ -8,28 +8,52 @@
 import java.io.*;
 import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Blockchain implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final Log log = Log.get("chain");
     
     private final ArrayList<Block> chain;
-    private final int difficulty = 5; //Number of leading 0s
 
-    private final Map<String, TransactionOutput> UTXO = new HashMap<>();
+    //hash -> height for every block on our chain, so lookups by hash (sync, duplicate checks) don't scan the chain.
+    private transient Map<String, Integer> heights = new ConcurrentHashMap<>();
+    private static final int DIFFICULTY = 5; //Number of leading 0s
+
+    //Not persisted, it is always rebuilt from the blocks. Readers (mempool admission) run concurrently with block
+    //application, so this is a concurrent map and a rebuild swaps in a whole new map instead of clearing this one.
+    private transient volatile Map<String, TransactionOutput> UTXO = new ConcurrentHashMap<>();
+
+    private transient MetricsRegistry metrics;
+
+    //Explorer indexes (txId and owner history), null unless the node turned them on. Saved in their own file.
+    private transient ChainIndex index;
+
+    //Everything that follows the chain block by block (the index, the wallet), told about every connect and disconnect.
+    private transient List<ChainObserver> observers = new ArrayList<>();
 
     public Blockchain () {
         chain = new ArrayList<>();
         chain.add(createGenesisBlock());
         rebuildUTXO();
+        rebuildIndex();
+    }
+
+    //Wraps blocks we already trust, the same way loadFromDisk does: nothing is validated, the UTXO set and the index
+    //are rebuilt from them. The benchmarks use this to build long histories without mining every block.
+    Blockchain (ArrayList<Block> blocks) {
+        chain = blocks;
+        rebuildUTXO();
+        rebuildIndex();
     }
 
-    private String target () {
-        return "0".repeat(difficulty);
+    static String target () {
+        return "0".repeat(DIFFICULTY);
     }
 
     //This is the first block in a chain, it must be created uniquely and deterministically
     //so all nodes have the same genesis in their chain.
-    private Block createGenesisBlock() {
+    static Block createGenesisBlock() {
         Block genesis = new Block(0, "0");
 
         genesis.timestamp = 0;
@@ -64,75 +88,128 @@ public class Blockchain implements Serializable {
 
     //Save/Load to and from disk
     public synchronized void saveToDisk (String filename) {
+        FlightEvents.ChainSave event = new FlightEvents.ChainSave();
+        event.begin();
+
         try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(filename))) {
             out.writeObject(this);
             out.flush();
-            //System.out.println("Saved Blockchain to Disk"); Annoying print, saved for debugging.
+            log.trace("Saved Blockchain to Disk");
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Could not save the chain to %s", filename, e);
+        }
+
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.height = chain.size() - 1;
+            event.bytes = new File(filename).length();
+            event.commit();
         }
     }
 
     public static Blockchain loadFromDisk(String filename) {
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(filename))) {
-            Blockchain chain = (Blockchain) in.readObject();
-            chain.rebuildUTXO();
-            //System.out.println("Blockchain loaded from disk"); Annoying print, saved for debugging.
+        FlightEvents.ChainLoad event = new FlightEvents.ChainLoad();
+        event.begin();
+        event.file = filename;
 
-            return chain;
+        Blockchain loaded;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(filename))) {
+            loaded = (Blockchain) in.readObject(); //readObject rebuilds the UTXO set
+            log.trace("Blockchain loaded from disk");
+            event.outcome = "loaded";
         } catch (FileNotFoundException e) {
             //File does not exist yet
-            System.out.println("No existing blockchain file, creating new chain");
+            log.info("No existing blockchain file, creating new chain");
 
-            return new Blockchain();
+            loaded = new Blockchain();
+            event.outcome = "new";
         } catch (Exception e) {
             //Corrupt file or incompatible version
-            System.out.println("Failed to load blockchain, creating new chain");
-            e.printStackTrace();
-            
-            return new Blockchain();
+            log.error("Failed to load blockchain, creating new chain", e);
+
+            loaded = new Blockchain();
+            event.outcome = "failed";
         }
+
+        if (event.shouldCommit()) {
+            event.height = loaded.length() - 1;
+            event.bytes = new File(filename).length();
+            event.commit();
+        }
+        return loaded;
     }
 
     //Checks whether a new block is valid and can be added to the chain.
     //If anything is wrong (wrong parent, bad hash, invalid transactions),
     //the block is rejected and the chain is left unchanged.
     public synchronized boolean tryAddBlock(Block block) throws Exception {
+        FlightEvents.BlockValidation event = new FlightEvents.BlockValidation();
+        event.begin();
+
+        long start = System.nanoTime();
+        boolean added = false;
+        try {
+            added = addBlock(block);
+            return added;
+        } finally {
+            metrics().histogram("chint_block_validation_seconds").recordSince(start);
+            metrics().counter(added ? "chint_blocks_connected_total" : "chint_blocks_rejected_total").increment();
+
+            if (event.shouldCommit()) {
+                event.height = block.index;
+                event.txCount = block.transactions == null ? 0 : block.transactions.size();
+                event.hash = block.hash;
+                event.accepted = added;
+                event.commit();
+            }
+        }
+    }
+
+    private boolean addBlock(Block block) throws Exception {
         Block last = getLatestBlock();
 
+        //Not on our tip is normal (forks, late blocks), so that one is only worth a debug line.
         if (!block.prevHash.equals(last.hash)) {
-            System.out.println("[REJECT] prevHash mismatch");
+            log.debug("Rejected block %d: prevHash mismatch", block.index);
+            return false;
+        }
+
+        if (block.index != last.index + 1) {
+            log.info("Rejected block %d: index invalid", block.index);
             return false;
         }
 
         if (block.timestamp < last.timestamp) {
-            System.out.println("[REJECT] timestamp invalid");
+            log.info("Rejected block %d: timestamp invalid", block.index);
             return false;
         }
 
-        if (!block.computeHash().equals(block.hash)) {
-            System.out.println("[REJECT] hash mismatch");
-            System.out.println("[REJECT] computed = " + block.computeHash());
-            System.out.println("[REJECT] stored   = " + block.hash);
+        String computed = block.computeHash();
+        if (!computed.equals(block.hash)) {
+            log.info("Rejected block %d: hash mismatch, computed %s, stored %s", block.index, computed, block.hash);
             return false;
         }
 
         if (!block.hash.startsWith(target())) {
-            System.out.println("[REJECT] PoW invalid");
+            log.info("Rejected block %d: PoW invalid", block.index);
             return false;
         }
 
         for (Transaction tx : block.transactions) {
             if (!validateTransaction(tx)) {
-                System.out.println("[REJECT] invalid transaction");
+                log.info("Rejected block %d: invalid transaction %s", block.index, tx.txId);
                 return false;
             }
         }
 
         chain.add(block);
+        heights.put(block.hash, block.index);
         for (Transaction tx : block.transactions) {
             applyTransaction(tx);
         }
+        for (ChainObserver observer : observers) {
+            observer.connect(block);
+        }
 
         return true;
     }
@@ -143,7 +220,7 @@ public class Blockchain implements Serializable {
             block.nonce++;
             block.hash = block.computeHash();
         }
-        System.out.println("Mined Block " + block.index + " : " + block.hash);
+        log.info("Mined Block %d : %s", block.index, block.hash);
     }
 
     //Checks if all blocks are valid in a chain.
@@ -158,6 +235,7 @@ public class Blockchain implements Serializable {
             Block prev = otherChain.get(i - 1);
 
             if (!curr.prevHash.equals(prev.hash)) return false;
+            if (curr.index != i) return false;
             if (curr.timestamp < prev.timestamp) return false;
             if (!curr.hash.equals(curr.computeHash())) return false;
             if (!curr.hash.startsWith(target())) return false;
@@ -177,12 +255,43 @@ public class Blockchain implements Serializable {
         }
 
         //Normal transaction
-        if (!tx.verify()) return false;
+        if (!checkStateless(tx)) return false;
+
+        return checkInputs(tx);
+    }
+
+    //Everything about a normal transaction that can be checked without looking at the chain: it has outputs, never
+    //spends the same input twice, only creates positive amounts, and is signed by the sender. Since it needs no shared
+    //state this can run on any number of threads at once, which matters because the RSA verify is the expensive part.
+    public boolean checkStateless(Transaction tx) throws Exception {
+        if (tx.inputs.isEmpty() || tx.outputs.isEmpty()) return false;
 
+        Set<String> spends = new HashSet<>();
+        for (TransactionInput in : tx.inputs) {
+            if (!spends.add(in.outputId)) return false;
+        }
+
+        long outputSum = 0;
+        for (TransactionOutput out : tx.outputs) {
+            if (out.amount <= 0) return false;
+            try {
+                outputSum = Math.addExact(outputSum, out.amount);
+            } catch (ArithmeticException e) {
+                return false;
+            }
+        }
+
+        return tx.verify();
+    }
+
+    //The part of validation that depends on chain state: every input must still be unspent, belong to the sender,
+    //and cover the outputs. The signature never changes, so after a reorg this is all that needs re-checking.
+    public boolean checkInputs(Transaction tx) {
+        Map<String, TransactionOutput> utxos = UTXO;
         long inputSum = 0;
 
         for (TransactionInput in : tx.inputs) {
-            TransactionOutput utxo = UTXO.get(in.outputId);
+            TransactionOutput utxo = utxos.get(in.outputId);
             if (utxo == null) return false;
             if (!utxo.recipient.equals(tx.sender)) return false;
             inputSum += utxo.amount;
@@ -207,33 +316,179 @@ public class Blockchain implements Serializable {
         }
     }
 
-    //Rebuilds the UTXO set from scratch so it matches the current chain exactly.
-    private void rebuildUTXO() {
-        UTXO.clear();
+    //Rebuilds the UTXO set from scratch so it matches the current chain exactly. Package-private for the benchmarks.
+    void rebuildUTXO() {
+        FlightEvents.UtxoRebuild event = new FlightEvents.UtxoRebuild();
+        event.begin();
+        long start = System.nanoTime();
+        Map<String, TransactionOutput> rebuilt = new ConcurrentHashMap<>();
 
         for (Block block : chain) {
             for (Transaction tx : block.transactions) {
                 for (TransactionInput in : tx.inputs) {
-                    UTXO.remove(in.outputId);
+                    rebuilt.remove(in.outputId);
                 }
                 for (TransactionOutput out : tx.outputs) {
-                    UTXO.put(out.id, out);
+                    rebuilt.put(out.id, out);
                 }
             }
         }
+
+        UTXO = rebuilt;
+        metrics().histogram("chint_utxo_rebuild_seconds").recordSince(start);
+
+        event.blocks = chain.size();
+        event.utxos = rebuilt.size();
+        event.commit();
+    }
+
+    private void rebuildIndex() {
+        Map<String, Integer> rebuilt = new ConcurrentHashMap<>();
+        for (Block block : chain) {
+            rebuilt.put(block.hash, block.index);
+        }
+        heights = rebuilt;
+    }
+
+    private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        observers = new ArrayList<>();
+        rebuildUTXO();
+        rebuildIndex();
     }
 
     //This is our "Most up-to-date chain" check, it is based on whichever chain is longer.
-    public synchronized boolean maybeReplaceChain (ArrayList<Block> newChain) {
-        if (newChain.size() <= chain.size()) return false;
-        if (!isValidChain(newChain)) return false;
+    //Returns which blocks were swapped out and in so callers can patch their own state, or null if we kept our chain.
+    public synchronized ChainReorg maybeReplaceChain (ArrayList<Block> newChain) {
+        if (newChain.size() <= chain.size()) return null;
+
+        FlightEvents.Reorg event = new FlightEvents.Reorg();
+        event.begin();
+        if (!isValidChain(newChain)) return null;
+
+        //Find the first height where the chains stop agreeing.
+        int fork = 0;
+        while (fork < chain.size() && chain.get(fork).hash.equals(newChain.get(fork).hash)) {
+            fork++;
+        }
+
+        List<Block> disconnected = new ArrayList<>(chain.subList(fork, chain.size()));
+        List<Block> connected = new ArrayList<>(newChain.subList(fork, newChain.size()));
+
+        for (ChainObserver observer : observers) {
+            for (int i = disconnected.size() - 1; i >= 0; i--) {
+                observer.disconnect(disconnected.get(i));
+            }
+            for (Block block : connected) {
+                observer.connect(block);
+            }
+        }
 
         chain.clear();
         chain.addAll(newChain);
         rebuildUTXO();
+        rebuildIndex();
+
+        event.forkHeight = fork - 1;
+        event.disconnected = disconnected.size();
+        event.connected = connected.size();
+        event.height = chain.size() - 1;
+        event.commit();
+        return new ChainReorg(disconnected, connected);
+    }
+
+    //Block locator for headers-first sync: our newest 10 hashes, then exponentially further apart, always ending with
+    //genesis. The first of these a peer recognizes is (close to) where our chains split, in O(log n) hashes.
+    public synchronized ArrayList<String> getLocator () {
+        ArrayList<String> locator = new ArrayList<>();
+        int step = 1;
+
+        for (int i = chain.size() - 1; i > 0; i -= step) {
+            locator.add(chain.get(i).hash);
+            if (locator.size() >= 10) step *= 2;
+        }
+
+        locator.add(chain.get(0).hash);
+        return locator;
+    }
+
+    //Answers a peer's locator: up to max headers following the newest locator block we also have.
+    public synchronized ArrayList<BlockHeader> getHeadersAfter (List<String> locator, int max) {
+        int fork = 0;
+        for (String hash : locator) {
+            Integer height = heights.get(hash);
+            if (height != null) {
+                fork = height;
+                break;
+            }
+        }
+
+        ArrayList<BlockHeader> headers = new ArrayList<>();
+        for (int i = fork + 1; i < chain.size() && headers.size() < max; i++) {
+            headers.add(new BlockHeader(chain.get(i)));
+        }
+        return headers;
+    }
+
+    //The blocks we have out of the requested hashes, in request order, at most max of them.
+    public synchronized ArrayList<Block> getBlocks (List<String> hashes, int max) {
+        ArrayList<Block> blocks = new ArrayList<>();
+        for (String hash : hashes) {
+            if (blocks.size() >= max) break;
+
+            Integer height = heights.get(hash);
+            if (height != null) blocks.add(chain.get(height));
+        }
+        return blocks;
+    }
+
+    //Checks that headers link up one after another on top of the given parent and that each one carries valid
+    //proof of work. This is all a peer's claim of a longer chain needs before we spend bandwidth on the bodies.
+    public static boolean checkHeaders (String parentHash, int parentIndex, long parentTimestamp, List<BlockHeader> headers) {
+        String prevHash = parentHash;
+        int prevIndex = parentIndex;
+        long prevTimestamp = parentTimestamp;
+
+        for (BlockHeader header : headers) {
+            if (!header.prevHash.equals(prevHash)) return false;
+            if (header.index != prevIndex + 1) return false;
+            if (header.timestamp < prevTimestamp) return false;
+            if (!header.hash.equals(header.computeHash())) return false;
+            if (!header.hash.startsWith(target())) return false;
+
+            prevHash = header.hash;
+            prevIndex = header.index;
+            prevTimestamp = header.timestamp;
+        }
         return true;
     }
 
+    //Our chain up to and including the given height, used to build a candidate chain for a reorg.
+    public synchronized ArrayList<Block> getChainUpTo (int height) {
+        return new ArrayList<>(chain.subList(0, height + 1));
+    }
+
+    //Turns the explorer indexes on, first indexing whatever blocks the given index doesn't cover yet.
+    public synchronized void setIndex (ChainIndex index) {
+        addObserver(index);
+        this.index = index;
+    }
+
+    //From now on the observer sees every block connected and disconnected; first it catches up with the chain as is.
+    public synchronized void addObserver (ChainObserver observer) {
+        observer.catchUp(chain);
+        observers.add(observer);
+    }
+
+    //Where validation timings go; the owning node sets this after creating or loading the chain.
+    public void setMetrics (MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    private MetricsRegistry metrics () {
+        return metrics != null ? metrics : MetricsRegistry.DETACHED;
+    }
+
     //These methods are basic "Getters" and are useful for the CLI.
     public ArrayList<Block> getChain () {
         return chain;
@@ -260,11 +515,17 @@ public class Blockchain implements Serializable {
     }
 
     public boolean containsBlock (String hash) {
-        for (Block block : chain) {
-            if (block.hash.equals(hash)) return true;
-        }
+        return heights.containsKey(hash);
+    }
+
+    //Height of the block with this hash on our chain, or -1 if it is not on it.
+    public int heightOf (String hash) {
+        Integer height = heights.get(hash);
+        return height == null ? -1 : height;
+    }
 
-        return false;
+    public synchronized Block getBlock (int height) {
+        return chain.get(height);
     }
 
     public int length () {
@@ -288,4 +549,65 @@ public class Blockchain implements Serializable {
             );
         }
     }
-}
\ No newline at end of file
+
+    //Inclusion proof for a confirmed transaction, for light clients. Null if it isn't on our chain or there is no index.
+    public synchronized MerkleProof proveTransaction (String txId) {
+        ChainIndex.Location at = index == null ? null : index.find(txId);
+        if (at == null) return null;
+
+        return MerkleProof.build(chain.get(at.height), at.position);
+    }
+
+    //Prints a confirmed transaction found through the tx index. Returns false if it isn't on our chain (or there is no
+    //index), so the caller can look elsewhere.
+    public synchronized boolean printTransaction (String txId) {
+        ChainIndex.Location at = index == null ? null : index.find(txId);
+        if (at == null) return false;
+
+        Block block = chain.get(at.height);
+        Transaction tx = block.transactions.get(at.position);
+        Base64.Encoder base64 = Base64.getEncoder();
+
+        System.out.println("Transaction " + tx.txId);
+        System.out.println("  block " + block.index + " (" + block.hash.substring(0, 10) + "), position " + at.position
+                + ", " + (chain.size() - block.index) + " confirmation(s)");
+        System.out.println("  sender " + (tx.inputs.isEmpty() ? "(coinbase)" : base64.encodeToString(tx.sender.getEncoded())));
+        for (TransactionInput in : tx.inputs) {
+            System.out.println("  spends " + in.outputId);
+        }
+        for (TransactionOutput out : tx.outputs) {
+            System.out.println("  pays   " + out.amount + " to " + base64.encodeToString(out.recipient.getEncoded()) + " (" + out.id + ")");
+        }
+        return true;
+    }
+
+    //Every output the owner received and spent, oldest first, with the running balance. Needs the tx index.
+    public void printHistory (PublicKey owner) {
+        if (index == null) {
+            System.out.println("The tx index is off (-Dchint.txIndex=false)");
+            return;
+        }
+
+        List<ChainIndex.Entry> entries = index.historyOf(owner);
+        if (entries.isEmpty()) {
+            System.out.println("(no history)");
+            return;
+        }
+
+        Map<String, Long> received = new HashMap<>();
+        long balance = 0;
+        for (ChainIndex.Entry entry : entries) {
+            long amount;
+            if (entry.spent) {
+                amount = -received.getOrDefault(entry.outputId, 0L);
+            } else {
+                amount = entry.amount;
+                received.put(entry.outputId, entry.amount);
+            }
+            balance += amount;
+
+            System.out.printf("block %-6d %-8s %+8d  balance %-8d tx %s%n",
+                    entry.height, entry.spent ? "spent" : "received", amount, balance, entry.txId);
+        }
+    }
+}
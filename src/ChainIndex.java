@@ -0,0 +1,174 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Optional explorer indexes over our chain: txId -> (height, position in block), and per owner (the hash of their
+ * public key) every output they received and every output they spent, in chain order. Blockchain keeps it up to date
+ * block by block as blocks are connected and disconnected, so the tx and history commands are one map lookup instead
+ * of a walk over every block.
+ *
+ * It is saved next to the chain (txindex_<port>.dat) together with the tip it was built for. On startup it only has
+ * to index the blocks after that tip; if the tip is no longer on our chain it is rebuilt from the blocks.
+ * Turn it off with -Dchint.txIndex=false.
+*/
+import java.io.*;
+import java.security.PublicKey;
+import java.util.*;
+
+public class ChainIndex implements ChainObserver, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Log log = Log.get("chain");
+
+    //Where a confirmed transaction is.
+    public static final class Location implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final int height;
+        public final int position;
+
+        Location (int height, int position) {
+            this.height = height;
+            this.position = position;
+        }
+    }
+
+    //One line of an owner's history: an output they received, or (spent) one of theirs that txId spent. Spends only know
+    //the outputId, the amount is the one of the matching receive earlier in the same history.
+    public static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final int height;
+        public final String txId;
+        public final String outputId;
+        public final long amount;
+        public final boolean spent;
+
+        Entry (int height, String txId, String outputId, long amount, boolean spent) {
+            this.height = height;
+            this.txId = txId;
+            this.outputId = outputId;
+            this.amount = amount;
+            this.spent = spent;
+        }
+    }
+
+    private final Map<String, Location> transactions = new HashMap<>();
+    private final Map<String, ArrayList<Entry>> history = new HashMap<>();
+
+    //The last block indexed, -1 / null while empty.
+    private int tipHeight = -1;
+    private String tipHash = null;
+
+    public static String keyHash (PublicKey key) {
+        return HashUtil.sha256(key.getEncoded());
+    }
+
+    //Brings the index up to date with the chain: only the blocks after our tip if it is still on the chain, otherwise
+    //all of them.
+    @Override
+    public synchronized void catchUp (List<Block> chain) {
+        boolean onChain = tipHeight >= 0 && tipHeight < chain.size() && chain.get(tipHeight).hash.equals(tipHash);
+        if (!onChain && tipHeight >= 0) {
+            log.info("Tx index tip %d is not on our chain, rebuilding it", tipHeight);
+        }
+        if (!onChain) clear();
+
+        int from = tipHeight + 1;
+        for (int i = from; i < chain.size(); i++) {
+            connect(chain.get(i));
+        }
+        if (chain.size() > from) log.debug("Indexed blocks %d-%d", from, chain.size() - 1);
+    }
+
+    @Override
+    public synchronized void connect (Block block) {
+        for (int position = 0; position < block.transactions.size(); position++) {
+            Transaction tx = block.transactions.get(position);
+            transactions.put(tx.txId, new Location(block.index, position));
+
+            if (!tx.inputs.isEmpty()) {
+                List<Entry> spender = historyOf(keyHash(tx.sender));
+                for (TransactionInput in : tx.inputs) {
+                    spender.add(new Entry(block.index, tx.txId, in.outputId, 0, true));
+                }
+            }
+            for (TransactionOutput out : tx.outputs) {
+                historyOf(keyHash(out.recipient)).add(new Entry(block.index, tx.txId, out.id, out.amount, false));
+            }
+        }
+
+        tipHeight = block.index;
+        tipHash = block.hash;
+    }
+
+    //Undoes connect for the tip block. Blocks are always disconnected tip first, so everything this block added is at
+    //the end of each history it touched.
+    @Override
+    public synchronized void disconnect (Block block) {
+        for (Transaction tx : block.transactions) {
+            transactions.remove(tx.txId);
+
+            if (!tx.inputs.isEmpty()) dropTail(keyHash(tx.sender), block.index);
+            for (TransactionOutput out : tx.outputs) {
+                dropTail(keyHash(out.recipient), block.index);
+            }
+        }
+
+        tipHeight = block.index - 1;
+        tipHash = block.prevHash;
+    }
+
+    public synchronized Location find (String txId) {
+        return transactions.get(txId);
+    }
+
+    //A copy of the owner's history, oldest first.
+    public synchronized List<Entry> historyOf (PublicKey owner) {
+        List<Entry> entries = history.get(keyHash(owner));
+        return entries == null ? List.of() : new ArrayList<>(entries);
+    }
+
+    public synchronized int size () {
+        return transactions.size();
+    }
+
+    private List<Entry> historyOf (String keyHash) {
+        return history.computeIfAbsent(keyHash, k -> new ArrayList<>());
+    }
+
+    private void dropTail (String keyHash, int height) {
+        ArrayList<Entry> entries = history.get(keyHash);
+        if (entries == null) return;
+
+        while (!entries.isEmpty() && entries.get(entries.size() - 1).height == height) {
+            entries.remove(entries.size() - 1);
+        }
+        if (entries.isEmpty()) history.remove(keyHash);
+    }
+
+    private void clear () {
+        transactions.clear();
+        history.clear();
+        tipHeight = -1;
+        tipHash = null;
+    }
+
+    public synchronized void saveToDisk (String filename) {
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            out.writeObject(this);
+        } catch (Exception e) {
+            log.error("Could not save the tx index to %s", filename, e);
+        }
+    }
+
+    //An empty index if there is no (readable) file, catchUp then fills it from the chain.
+    public static ChainIndex loadFromDisk (String filename) {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+            return (ChainIndex) in.readObject();
+        } catch (FileNotFoundException e) {
+            return new ChainIndex();
+        } catch (Exception e) {
+            log.warn("Could not read the tx index from %s, rebuilding it: %s", filename, e.getMessage());
+            return new ChainIndex();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ * Gavin MacFadyen
+ *
+ * State that follows our chain block by block instead of being rebuilt from it (the tx index, the wallet).
+ * Blockchain calls these while it holds its own lock, in chain order: connect for every block added at the tip, and
+ * during a reorg disconnect for every block taken off (tip first) before the new branch is connected.
+*/
+import java.util.List;
+
+public interface ChainObserver {
+    //Called once when the observer is attached, with the whole chain, to index what it doesn't cover yet.
+    void catchUp (List<Block> chain);
+
+    void connect (Block block);
+
+    void disconnect (Block block);
+}
@@ -0,0 +1,17 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Describes a chain switch: the blocks that were taken off our old chain and the blocks of the new chain
+ * that replaced them, both starting right after the last block the two chains have in common.
+*/
+import java.util.List;
+
+public class ChainReorg {
+    public final List<Block> disconnected;
+    public final List<Block> connected;
+
+    public ChainReorg (List<Block> disconnected, List<Block> connected) {
+        this.disconnected = disconnected;
+        this.connected = connected;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Headers-first chain sync. Instead of asking a peer for its whole Blockchain object, we send a block locator
+ * (see Blockchain.getLocator) and get back only the headers after the last block we have in common. The headers
+ * are checked for linkage and proof of work first, and only if they describe a longer chain do we download the
+ * missing block bodies. Catching up by a few blocks therefore moves a few kilobytes. The bodies are fetched in
+ * batches from all connected peers in parallel (see download) and validated while the rest is still coming in.
+ *
+ * Protocol:
+ *     GET_HEADERS (locator)     -> HEADERS (up to MAX_HEADERS headers)
+ *     GET_BLOCKS  (block hashes) -> BLOCKS  (up to MAX_BLOCKS blocks, in request order)
+*/
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChainSync {
+    //Protocol limits, both sides must agree on these. A HEADERS answer with exactly MAX_HEADERS entries means "ask again".
+    public static final int MAX_HEADERS = 2000;
+    public static final int MAX_BLOCKS = 500;
+
+    private static final Log log = Log.get("sync");
+
+    private final Node node;
+    private final Blockchain blockchain;
+    private final Mempool mempool;
+
+    //Blocks are connected on this one thread, in chain order, while more of them download.
+    private final ExecutorService validator = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "sync-validator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ChainSync (Node node, Blockchain blockchain, Mempool mempool) {
+        this.node = node;
+        this.blockchain = blockchain;
+        this.mempool = mempool;
+    }
+
+    //Brings our chain up to the peer's if the peer has a longer valid one. Returns true if our chain changed.
+    //One sync at a time: a second caller waits for the running one and then finds less (or nothing) to do.
+    public synchronized boolean syncWith (String host, int port) throws Exception {
+        PeerConnection conn = node.connectionTo(host, port);
+
+        //1. Headers after the fork point, checked as they come in.
+        List<BlockHeader> headers = new ArrayList<>();
+        int forkHeight = -1;
+        ArrayList<String> locator = blockchain.getLocator();
+
+        while (true) {
+            List<BlockHeader> batch = castList(conn.request(new Message("GET_HEADERS", locator)).data);
+            if (batch.isEmpty()) break;
+
+            boolean linked;
+            if (headers.isEmpty()) {
+                forkHeight = blockchain.heightOf(batch.get(0).prevHash);
+                if (forkHeight < 0) throw new Exception("headers from " + host + ":" + port + " don't connect to our chain");
+
+                Block parent = blockchain.getBlock(forkHeight);
+                linked = Blockchain.checkHeaders(parent.hash, parent.index, parent.timestamp, batch);
+            } else {
+                BlockHeader last = headers.get(headers.size() - 1);
+                linked = Blockchain.checkHeaders(last.hash, last.index, last.timestamp, batch);
+            }
+            if (!linked) throw new Exception("invalid headers from " + host + ":" + port);
+
+            headers.addAll(batch);
+            if (batch.size() < MAX_HEADERS) break;
+
+            //Continue right after the last header we got.
+            locator = new ArrayList<>(List.of(batch.get(batch.size() - 1).hash));
+        }
+
+        //Same chain or theirs isn't longer, nothing to download.
+        if (headers.isEmpty() || forkHeight + 1 + headers.size() <= blockchain.length()) return false;
+
+        //2. Bodies, from every peer we are connected to. If the peer's chain simply extends ours, every batch is
+        //connected as soon as it is its turn. Otherwise we need the whole branch before we can decide to switch to it.
+        boolean extending = forkHeight == blockchain.length() - 1;
+        ArrayList<Block> branch = new ArrayList<>();
+
+        try {
+            download(headers, node.syncSources(conn), extending, branch);
+        } finally {
+            //Whatever got connected before a failure is still progress worth keeping.
+            if (extending && blockchain.length() > forkHeight + 1) node.saveChain();
+        }
+
+        if (extending) {
+            log.info("Synced %d blocks from %s:%d and %d other peer(s)", headers.size(), host, port, node.syncSources(conn).size() - 1);
+            return true;
+        }
+
+        ArrayList<Block> candidate = blockchain.getChainUpTo(forkHeight);
+        candidate.addAll(branch);
+
+        ChainReorg reorg = blockchain.maybeReplaceChain(candidate);
+        if (reorg == null) return false;
+
+        log.info("Chain reorganized at height %d: %d block(s) out, %d in", forkHeight, reorg.disconnected.size(), reorg.connected.size());
+        for (Block block : reorg.connected) {
+            node.getListener().blockConnected(node, block);
+        }
+        node.getListener().chainReorganized(node, reorg);
+
+        //Give back txs from the blocks we lost and re-check the ones whose inputs moved.
+        mempool.reorganize(reorg);
+
+        //Persist new canonical chain.
+        node.saveChain();
+        return true;
+    }
+
+    //Fetches the bodies for the headers in batches, several peers at once. Each peer has at most one batch in flight,
+    //and we never run more than SYNC_WINDOW batches ahead of validation, so a slow first batch can't make us buffer the
+    //whole chain. A peer that doesn't answer within SYNC_STALL_MS, or answers with the wrong blocks, is dropped from
+    //this sync and its batch goes to someone else.
+    //
+    //Finished batches go through a single validator thread strictly in chain order, while the next batches download.
+    private void download (List<BlockHeader> headers, List<PeerConnection> sources, boolean extending, ArrayList<Block> branch) throws Exception {
+        int batchSize = Math.min(NodeConfig.SYNC_BLOCK_BATCH, MAX_BLOCKS);
+        int batchCount = (headers.size() + batchSize - 1) / batchSize;
+
+        Object lock = new Object();
+        List<List<Block>> done = new ArrayList<>(Collections.nCopies(batchCount, null));
+        Deque<Integer> todo = new ArrayDeque<>();
+        for (int i = 0; i < batchCount; i++) todo.add(i);
+
+        Deque<PeerConnection> idle = new ArrayDeque<>(sources);
+        Map<PeerConnection, Integer> busy = new HashMap<>();
+        Map<PeerConnection, Long> deadlines = new HashMap<>();
+
+        AtomicInteger validated = new AtomicInteger();
+        CompletableFuture<Void> validation = CompletableFuture.completedFuture(null);
+        int queued = 0; //Batches handed to the validator so far
+
+        try {
+            while (queued < batchCount) {
+                synchronized (lock) {
+                    //Hand finished batches to the validator, in order.
+                    while (queued < batchCount && done.get(queued) != null) {
+                        List<Block> blocks = done.get(queued);
+                        validation = validation.thenRunAsync(() -> {
+                            connect(blocks, extending, branch);
+                            validated.incrementAndGet();
+                            synchronized (lock) {
+                                lock.notifyAll();
+                            }
+                        }, validator);
+                        queued++;
+                    }
+                    if (queued == batchCount) break;
+                    if (validation.isCompletedExceptionally()) break;
+
+                    //Peers that went quiet lose their batch, and their place in this sync.
+                    long now = System.currentTimeMillis();
+                    for (Iterator<Map.Entry<PeerConnection, Long>> it = deadlines.entrySet().iterator(); it.hasNext(); ) {
+                        Map.Entry<PeerConnection, Long> entry = it.next();
+                        if (now < entry.getValue()) continue;
+
+                        it.remove();
+                        todo.addFirst(busy.remove(entry.getKey()));
+                        log.warn("%s stalled, reassigning its blocks", entry.getKey().describePeer());
+                    }
+
+                    //Keep every idle peer busy, inside the window.
+                    while (!idle.isEmpty() && !todo.isEmpty() && todo.peekFirst() < validated.get() + NodeConfig.SYNC_WINDOW) {
+                        PeerConnection peer = idle.poll();
+                        if (!peer.isOpen()) continue;
+
+                        int batch = todo.poll();
+                        List<BlockHeader> wanted = headers.subList(batch * batchSize, Math.min((batch + 1) * batchSize, headers.size()));
+                        ArrayList<String> hashes = new ArrayList<>();
+                        for (BlockHeader header : wanted) hashes.add(header.hash);
+
+                        //Registered before sending: the answer may come back before requestAsync even returns.
+                        busy.put(peer, batch);
+                        deadlines.put(peer, now + NodeConfig.SYNC_STALL_MS);
+
+                        try {
+                            peer.requestAsync(new Message("GET_BLOCKS", hashes)).whenComplete((reply, error) -> {
+                                synchronized (lock) {
+                                    boolean assigned = deadlines.remove(peer) != null && busy.remove(peer) == batch;
+                                    List<Block> blocks = error == null ? matching(reply, hashes) : null;
+
+                                    if (blocks != null && done.get(batch) == null) done.set(batch, blocks);
+
+                                    if (blocks != null && assigned) {
+                                        idle.add(peer);
+                                    } else if (assigned && done.get(batch) == null) {
+                                        todo.addFirst(batch); //Peer failed us, it is not put back in idle
+                                    }
+                                    lock.notifyAll();
+                                }
+                            });
+                        } catch (IOException e) {
+                            busy.remove(peer);
+                            deadlines.remove(peer);
+                            todo.addFirst(batch);
+                        }
+                    }
+
+                    if (busy.isEmpty() && idle.isEmpty()) {
+                        throw new Exception("no peer left to download blocks from");
+                    }
+
+                    lock.wait(100);
+                }
+            }
+        } finally {
+            //Let the validator finish what it already has, success or not, before anyone touches the chain again.
+            try {
+                validation.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    //The blocks in a GET_BLOCKS reply if they are exactly the ones we asked for, otherwise null.
+    private static List<Block> matching (Message reply, List<String> hashes) {
+        if (!(reply.data instanceof List)) return null;
+
+        List<Block> blocks = castList(reply.data);
+        if (blocks.size() != hashes.size()) return null;
+
+        try {
+            for (int i = 0; i < blocks.size(); i++) {
+                if (!blocks.get(i).hash.equals(hashes.get(i))) return null;
+            }
+        } catch (ClassCastException e) {
+            return null;
+        }
+        return blocks;
+    }
+
+    //Validator thread: connects a batch to our chain, or collects it for a reorg.
+    private void connect (List<Block> blocks, boolean extending, ArrayList<Block> branch) {
+        for (Block block : blocks) {
+            if (!extending) {
+                branch.add(block);
+                continue;
+            }
+
+            boolean added;
+            try {
+                added = blockchain.tryAddBlock(block);
+            } catch (Exception e) {
+                added = false;
+            }
+            if (!added) throw new CompletionException(new Exception("rejected block " + block.index));
+
+            mempool.removeForBlock(block);
+            node.getListener().blockConnected(node, block);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> castList (Object data) {
+        return (List<T>) data;
+    }
+}
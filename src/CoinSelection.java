@@ -0,0 +1,127 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Picks which of our coins (unspent outputs) pay for a transaction. Every coin we spend is an input someone has to
+ * check the signature and UTXO entry for, and every change output is another coin later, so the choice matters:
+ *     bnb       branch and bound: looks for a set of coins that adds up to exactly the amount, so there is no change
+ *               output at all. Falls back to largest-first when there is none (or it takes too long to find).
+ *     largest   largest coins first: the fewest inputs, but leaves the small coins (dust) lying around.
+ *     smallest  smallest coins first: more inputs now, but cleans up dust. What consolidation uses.
+ * Choose one with -Dchint.coinSelection=<name>, the default is bnb.
+*/
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+public interface CoinSelection {
+    //Coins adding up to at least target, or null if these coins can't.
+    List<TransactionOutput> select (List<TransactionOutput> coins, long target);
+
+    CoinSelection LARGEST_FIRST = (coins, target) -> inOrder(coins, target, Comparator.comparingLong((TransactionOutput o) -> o.amount).reversed());
+
+    CoinSelection SMALLEST_FIRST = (coins, target) -> inOrder(coins, target, Comparator.comparingLong(o -> o.amount));
+
+    CoinSelection BRANCH_AND_BOUND = (coins, target) -> {
+        List<TransactionOutput> exact = BranchAndBound.exactMatch(coins, target);
+        return exact != null ? exact : LARGEST_FIRST.select(coins, target);
+    };
+
+    static CoinSelection byName (String name) {
+        return switch (name.trim().toLowerCase()) {
+            case "largest" -> LARGEST_FIRST;
+            case "smallest" -> SMALLEST_FIRST;
+            case "bnb" -> BRANCH_AND_BOUND;
+            default -> null;
+        };
+    }
+
+    private static List<TransactionOutput> inOrder (List<TransactionOutput> coins, long target, Comparator<TransactionOutput> order) {
+        List<TransactionOutput> sorted = new ArrayList<>(coins);
+        sorted.sort(order);
+
+        List<TransactionOutput> selected = new ArrayList<>();
+        long total = 0;
+        for (TransactionOutput coin : sorted) {
+            if (total >= target) break;
+            selected.add(coin);
+            total += coin.amount;
+        }
+        return total >= target ? selected : null;
+    }
+
+    //Depth first search over "take this coin or not", largest coins first, cutting every branch that already overshoots
+    //or can't reach the target with what is left. Gives up after MAX_TRIES steps, a wallet full of equal coins would
+    //otherwise explore the same sums over and over.
+    final class BranchAndBound {
+        private static final int MAX_TRIES = 100_000;
+
+        private final long[] amounts;
+        private final long[] remaining; //remaining[i] = sum of amounts[i..]
+        private final boolean[] taken;
+        private int tries = 0;
+
+        private BranchAndBound (long[] amounts) {
+            this.amounts = amounts;
+            this.remaining = new long[amounts.length + 1];
+            for (int i = amounts.length - 1; i >= 0; i--) {
+                remaining[i] = remaining[i + 1] + amounts[i];
+            }
+            this.taken = new boolean[amounts.length];
+        }
+
+        static List<TransactionOutput> exactMatch (List<TransactionOutput> coins, long target) {
+            List<TransactionOutput> sorted = new ArrayList<>(coins);
+            sorted.sort(Comparator.comparingLong((TransactionOutput o) -> o.amount).reversed());
+
+            long[] amounts = new long[sorted.size()];
+            for (int i = 0; i < amounts.length; i++) amounts[i] = sorted.get(i).amount;
+
+            BranchAndBound search = new BranchAndBound(amounts);
+            if (!search.find(target)) return null;
+
+            List<TransactionOutput> selected = new ArrayList<>();
+            for (int i = 0; i < amounts.length; i++) {
+                if (search.taken[i]) selected.add(sorted.get(i));
+            }
+            return selected;
+        }
+
+        //A loop rather than recursion, a wallet full of dust would otherwise need a stack frame per coin. The coins taken
+        //so far are the search path; backing up means dropping the last one and trying without it.
+        private boolean find (long target) {
+            int[] path = new int[amounts.length];
+            int depth = 0;
+            int i = 0;
+            long left = target;
+
+            while (left != 0) {
+                if (i < amounts.length && remaining[i] >= left && ++tries <= MAX_TRIES) {
+                    if (amounts[i] <= left) {
+                        taken[i] = true;
+                        path[depth++] = i;
+                        left -= amounts[i];
+                        i++;
+                    } else {
+                        i = nextDifferent(i);
+                    }
+                    continue;
+                }
+
+                if (tries > MAX_TRIES || depth == 0) return false;
+
+                int last = path[--depth];
+                taken[last] = false;
+                left += amounts[last];
+                i = nextDifferent(last);
+            }
+            return true;
+        }
+
+        //Skipping a coin only helps if the next one is different, otherwise it is the same search again.
+        private int nextDifferent (int i) {
+            int next = i + 1;
+            while (next < amounts.length && amounts[next] == amounts[i]) next++;
+            return next;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Gavin MacFadyen
+ *
+ * A block as it is relayed to peers that most likely have its transactions already: the header fields, the coinbase
+ * (nobody has that one yet) and a 6 byte short ID per other transaction, in block order. The receiver looks the short
+ * IDs up in its own mempool, asks for whatever it is missing in one GET_BLOCK_TXN round trip, and rebuilds the block.
+ *
+ * Short IDs are salted with the block hash, so nobody can make up transactions that collide with another one ahead of
+ * time. A collision that happens anyway just makes the rebuilt block fail its hash check, and the receiver falls back
+ * to downloading the full block.
+*/
+import java.io.Serializable;
+import java.util.*;
+
+public class CompactBlock implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final int index;
+    public final long timestamp;
+    public final int nonce;
+    public final String prevHash;
+    public final String hash;
+
+    public final Transaction coinbase;
+    public final long[] shortIds;
+
+    public CompactBlock (Block block) {
+        this.index = block.index;
+        this.timestamp = block.timestamp;
+        this.nonce = block.nonce;
+        this.prevHash = block.prevHash;
+        this.hash = block.hash;
+
+        this.coinbase = block.transactions.get(0);
+        this.shortIds = new long[block.transactions.size() - 1];
+        for (int i = 1; i < block.transactions.size(); i++) {
+            shortIds[i - 1] = shortId(hash, block.transactions.get(i).txId);
+        }
+    }
+
+    public static long shortId (String blockHash, String txId) {
+        return Long.parseLong(HashUtil.sha256(blockHash + txId).substring(0, 12), 16);
+    }
+
+    //The block's transactions as far as the pool has them; missing ones (or ones two pool txs share a short ID with)
+    //are left null. Position 0 is always the coinbase.
+    public Transaction[] match (Collection<Transaction> pool) {
+        Map<Long, Transaction> byShortId = new HashMap<>();
+        Set<Long> ambiguous = new HashSet<>();
+
+        for (Transaction tx : pool) {
+            long id = shortId(hash, tx.txId);
+            if (byShortId.putIfAbsent(id, tx) != null) ambiguous.add(id);
+        }
+
+        Transaction[] txs = new Transaction[shortIds.length + 1];
+        txs[0] = coinbase;
+        for (int i = 0; i < shortIds.length; i++) {
+            if (!ambiguous.contains(shortIds[i])) txs[i + 1] = byShortId.get(shortIds[i]);
+        }
+        return txs;
+    }
+
+    //Builds the block from a fully matched transaction list, or returns null if it doesn't hash to what the header says.
+    public Block toBlock (Transaction[] txs) {
+        Block block = new Block(index, prevHash);
+        block.timestamp = timestamp;
+        block.nonce = nonce;
+        block.transactions = new ArrayList<>(Arrays.asList(txs));
+        block.hash = block.computeHash();
+
+        return block.hash.equals(hash) ? block : null;
+    }
+
+    //GET_BLOCK_TXN payload: the block and the positions (in block.transactions) of the transactions we lack.
+    public static class MissingTxs implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String blockHash;
+        public final List<Integer> indexes;
+
+        public MissingTxs (String blockHash, List<Integer> indexes) {
+            this.blockHash = blockHash;
+            this.indexes = indexes;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Java Flight Recorder events for the consensus and networking hot paths, so a stalled node can be looked at in JDK
+ * Mission Control instead of guessed at. Start a node with a continuous recording, for example:
+ *     java -XX:StartFlightRecording=disk=true,maxage=1h,dumponexit=true,filename=node.jfr Main 5000
+ * or attach one later with: jcmd <pid> JFR.start
+ *
+ * While no recording is running, commit() does nothing and the JIT removes most of the cost, so the events stay in
+ * the code permanently. Fields that cost something to fill in are only set after shouldCommit(). None of the events
+ * take stack traces, they are about where time goes, not who called.
+*/
+import jdk.jfr.*;
+
+public class FlightEvents {
+    private FlightEvents () {}
+
+    @Name("chint.BlockValidation")
+    @Label("Block Validation")
+    @Description("Blockchain.tryAddBlock: checks and, if valid, applies a block")
+    @Category({"CryptoCoin", "Consensus"})
+    @StackTrace(false)
+    static final class BlockValidation extends Event {
+        @Label("Height")
+        int height;
+
+        @Label("Transactions")
+        int txCount;
+
+        @Label("Hash")
+        String hash;
+
+        @Label("Accepted")
+        boolean accepted;
+    }
+
+    @Name("chint.UtxoRebuild")
+    @Label("UTXO Rebuild")
+    @Description("Rebuilding the whole UTXO set from the chain (startup, reorg)")
+    @Category({"CryptoCoin", "Consensus"})
+    @StackTrace(false)
+    static final class UtxoRebuild extends Event {
+        @Label("Blocks")
+        int blocks;
+
+        @Label("UTXOs")
+        int utxos;
+    }
+
+    @Name("chint.Reorg")
+    @Label("Chain Reorganization")
+    @Description("Switching to a longer branch")
+    @Category({"CryptoCoin", "Consensus"})
+    @StackTrace(false)
+    static final class Reorg extends Event {
+        @Label("Fork Height")
+        int forkHeight;
+
+        @Label("Blocks Disconnected")
+        int disconnected;
+
+        @Label("Blocks Connected")
+        int connected;
+
+        @Label("New Height")
+        int height;
+    }
+
+    @Name("chint.ChainSave")
+    @Label("Chain Save")
+    @Description("Writing the whole chain to blockchain_<port>.dat")
+    @Category({"CryptoCoin", "Persistence"})
+    @StackTrace(false)
+    static final class ChainSave extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Height")
+        int height;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("chint.ChainLoad")
+    @Label("Chain Load")
+    @Description("Reading the chain from disk at startup, including the UTXO rebuild")
+    @Category({"CryptoCoin", "Persistence"})
+    @StackTrace(false)
+    static final class ChainLoad extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Height")
+        int height;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Outcome")
+        @Description("loaded, new (no file) or failed (unreadable file, started a new chain)")
+        String outcome;
+    }
+
+    @Name("chint.MiningRound")
+    @Label("Mining Round")
+    @Description("Proof of work for one block, from building it to adding it to our chain")
+    @Category({"CryptoCoin", "Mining"})
+    @StackTrace(false)
+    static final class MiningRound extends Event {
+        @Label("Height")
+        int height;
+
+        @Label("Transactions")
+        int txCount;
+
+        @Label("Hashes")
+        long hashes;
+
+        @Label("Outcome")
+        @Description("mined, or stale if our tip moved while we were mining")
+        String outcome;
+    }
+
+    @Name("chint.MempoolAdmission")
+    @Label("Mempool Admission")
+    @Description("Validating a transaction and admitting it to the mempool")
+    @Category({"CryptoCoin", "Mempool"})
+    @StackTrace(false)
+    static final class MempoolAdmission extends Event {
+        @Label("Transaction")
+        String txId;
+
+        @Label("Inputs")
+        int inputs;
+
+        @Label("Outputs")
+        int outputs;
+
+        @Label("Accepted")
+        boolean accepted;
+
+        @Label("Reason")
+        @Description("Why it was rejected")
+        String reason;
+    }
+
+    @Name("chint.MessageSent")
+    @Label("Message Sent")
+    @Description("Serializing (and compressing) a message for a peer, see Send Queue Full for frames that were dropped")
+    @Category({"CryptoCoin", "Network"})
+    @StackTrace(false)
+    static final class MessageSent extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Peer")
+        String peer;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Wire Size")
+        @Description("Size on the wire, after compression")
+        @DataAmount
+        long wireBytes;
+    }
+
+    @Name("chint.MessageReceived")
+    @Label("Message Received")
+    @Description("Decompressing and deserializing a message from a peer")
+    @Category({"CryptoCoin", "Network"})
+    @StackTrace(false)
+    static final class MessageReceived extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Peer")
+        String peer;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Wire Size")
+        @DataAmount
+        long wireBytes;
+    }
+
+    @Name("chint.MessageHandled")
+    @Label("Message Handled")
+    @Description("Node.handleMessage for one message from a peer")
+    @Category({"CryptoCoin", "Network"})
+    @StackTrace(false)
+    static final class MessageHandled extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Peer")
+        String peer;
+
+        @Label("Reply")
+        @Description("Type of our answer, if the message was a request")
+        String reply;
+    }
+
+    @Name("chint.SendQueueFull")
+    @Label("Send Queue Full")
+    @Description("A peer's send queue hit its limit and gossip was dropped to keep it bounded")
+    @Category({"CryptoCoin", "Network"})
+    @StackTrace(false)
+    static final class SendQueueFull extends Event {
+        @Label("Peer")
+        String peer;
+
+        @Label("Queued")
+        @DataAmount
+        long queuedBytes;
+
+        @Label("Frames Dropped")
+        int dropped;
+    }
+}
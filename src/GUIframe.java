@@ -2,17 +2,34 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author Brandon Kuciapski
  * Swing GUI wrapper for the blockchain node
+ * Node work (mining, connecting, sending) runs on a background worker, never on the event thread, so the window stays
+ * responsive during a PoW search or a slow peer. The status bar polls the node a few times a second instead of being
+ * pushed every change, so a fast miner can't flood the event thread.
  */
 public class GUIframe extends JFrame {
 
+    private static final int STATUS_REFRESH_MS = 500;
+
     private JTextArea terminal;
     private JTextField portField;
+    private JLabel statusLabel;
+    private JButton mineButton;
+
+    private final ExecutorService worker = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "gui-worker");
+        t.setDaemon(true);
+        return t;
+    });
 
-    private Node node;
+    private volatile Node node;
+    private volatile boolean starting;
 
     public GUIframe() {
         setTitle("Chintcoin GUI Blockchain Client");
@@ -23,9 +40,14 @@ public class GUIframe extends JFrame {
         add(createTopPanel(), BorderLayout.NORTH);
         add(createLeftPanel(), BorderLayout.WEST);
         add(createTerminalPanel(), BorderLayout.CENTER);
+        add(createStatusPanel(), BorderLayout.SOUTH);
 
         redirectSystemOutput();
 
+        Timer statusTimer = new Timer(STATUS_REFRESH_MS, e -> refreshStatus());
+        statusTimer.setCoalesce(true);
+        statusTimer.start();
+
         setLocationRelativeTo(null);
         setVisible(true);
     }
@@ -110,11 +132,17 @@ public class GUIframe extends JFrame {
         panel.add(button("Connect", this::connect));
         panel.add(button("Peers", this::peers));
         panel.add(button("Send", this::send));
+        panel.add(button("Send File", this::sendFile));
         panel.add(button("Balance", this::balance));
         panel.add(button("Chain", this::chain));
         panel.add(button("UTXO", this::utxo));
         panel.add(button("Mempool", this::mempool));
-        panel.add(button("Mine", this::mine));
+        panel.add(button("Tx", this::tx));
+        panel.add(button("History", this::history));
+        panel.add(button("Traffic", this::traffic));
+        panel.add(button("Stats", this::stats));
+        mineButton = button("Mine", this::mine);
+        panel.add(mineButton);
         panel.add(button("Exit", this::exit));
 
         return panel;
@@ -152,32 +180,95 @@ public class GUIframe extends JFrame {
     }
 
 
+    // ───────────────────────── STATUS BAR ─────────────────────────
+    private JPanel createStatusPanel() {
+        JPanel panel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        panel.setBorder(BorderFactory.createEmptyBorder(4, 10, 4, 10));
+        panel.setBackground(new Color(20, 20, 20));
+
+        statusLabel = new JLabel("Node not running");
+        statusLabel.setForeground(Color.WHITE);
+        statusLabel.setFont(new Font("JetBrains Mono", Font.PLAIN, 12));
+        panel.add(statusLabel);
+
+        return panel;
+    }
+
+    //Runs on the EDT every STATUS_REFRESH_MS; only reads values the node keeps up to date anyway.
+    private void refreshStatus() {
+        if (node == null) return;
+
+        String chain = String.format("Height %d | Mempool %d | Peers %d",
+                node.getBlockchain().length() - 1, node.getMempoolSize(), node.getPeerCount());
+
+        if (node.isMining()) {
+            long hashes = node.getMiningHashes();
+            statusLabel.setText(String.format("%s | Mining block %d: %,d nonces (%.0f%% of expected) at %,.0f H/s",
+                    chain, node.getMiningHeight(), hashes, hashes * 100.0 / node.getExpectedHashes(), node.getHashrate()));
+            mineButton.setText("Stop Mining");
+        } else {
+            double hashrate = node.getHashrate();
+            statusLabel.setText(hashrate > 0 ? String.format("%s | Last round %,.0f H/s", chain, hashrate) : chain);
+            mineButton.setText("Mine");
+        }
+    }
+
+    //Runs node work off the event thread; failures end up in the terminal like everything else.
+    private void inBackground(String what, NodeTask task) {
+        worker.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.out.println(what + " failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private interface NodeTask {
+        void run() throws Exception;
+    }
+
     private void redirectSystemOutput() {
-        PrintStream ps = new PrintStream(new TextAreaOutputStream(terminal));
+        //Encode as UTF-8 explicitly, that is what TextAreaOutputStream decodes.
+        PrintStream ps = new PrintStream(new TextAreaOutputStream(terminal), true, StandardCharsets.UTF_8);
         System.setOut(ps);
         System.setErr(ps);
     }
 
     // ───────────────────────── NODE CONTROL ─────────────────────────
     private void startNode() {
-        if (node != null) {
+        if (node != null || starting) {
             System.out.println("Node already running.");
             return;
         }
 
+        int port;
         try {
-            int port = Integer.parseInt(portField.getText());
-            node = new Node(port);
-            node.start();
+            port = Integer.parseInt(portField.getText().trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Failed to start node: invalid port " + portField.getText());
+            return;
+        }
 
-            System.out.println("Node running on port " + port);
-            System.out.println("Public key:");
-            System.out.println(node.getPublicKeyBase64());
-            System.out.println("Type 'help' using the buttons.");
+        //Loading a long chain from disk takes a while, that happens on the worker too.
+        starting = true;
+        inBackground("Start node", () -> {
+            try {
+                Node started = new Node(port);
+                started.start();
+                node = started;
 
-        } catch (Exception e) {
-            System.out.println("Failed to start node: " + e.getMessage());
-        }
+                System.out.println("Node running on port " + port);
+                System.out.println("Public key:");
+                System.out.println(started.getPublicKeyBase64());
+                System.out.println("Type 'help' using the buttons.");
+
+            } catch (Exception e) {
+                System.out.println("Failed to start node: " + e.getMessage());
+            } finally {
+                starting = false;
+            }
+        });
     }
 
     // ───────────────────────── COMMANDS ─────────────────────────
@@ -188,11 +279,16 @@ public class GUIframe extends JFrame {
           connect <ip> <port>     Connect to another node
           peers                   List connected peers
           send <pubKey> <amount>  Create + broadcast transaction
-          balance                 Show this node's balance
+          send file               Bulk payout, one "<pubKey> <amount>" per line
+          balance                 Confirmed/unconfirmed balance and coin count
           chain                   Print blockchain summary
           utxo                    Print UTXO set (balances)
           mempool                 Show pending transactions
-          mine                    Mine block from mempool
+          tx <txId>               Look up a transaction (block, inputs, outputs)
+          history [<pubKey>]      Received and spent outputs of a key (default: ours)
+          traffic                 Messages and bytes sent/received per type
+          stats                   Node metrics: counters, gauges, latencies
+          mine                    Mine block from mempool (click again to stop)
           exit                    Shutdown node
         """);
     }
@@ -204,12 +300,17 @@ public class GUIframe extends JFrame {
         String port = JOptionPane.showInputDialog(this, "Peer Port:");
 
         if (ip != null && port != null) {
-            node.syncWithPeer(ip, Integer.parseInt(port));
+            try {
+                int peerPort = Integer.parseInt(port.trim());
+                inBackground("Connect", () -> node.syncWithPeer(ip.trim(), peerPort));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid port: " + port);
+            }
         }
     }
 
     private void peers() {
-        if (node != null) node.printPeers();
+        if (node != null) inBackground("Peers", node::printPeers);
     }
 
     private void send() {
@@ -220,62 +321,134 @@ public class GUIframe extends JFrame {
 
         if (pubKey == null || amount == null) return;
 
+        long amt;
+        java.security.PublicKey receiver;
         try {
-            long amt = Long.parseLong(amount);
+            amt = Long.parseLong(amount.trim());
+            receiver = java.security.KeyFactory.getInstance("RSA")
+                    .generatePublic(
+                            new java.security.spec.X509EncodedKeySpec(
+                                    java.util.Base64.getDecoder().decode(pubKey.trim())
+                            )
+                    );
+        } catch (Exception e) {
+            System.out.println("Failed to send transaction: " + e.getMessage());
+            return;
+        }
 
-            Transaction tx = node.createTransaction(
-                    java.security.KeyFactory.getInstance("RSA")
-                            .generatePublic(
-                                    new java.security.spec.X509EncodedKeySpec(
-                                            java.util.Base64.getDecoder().decode(pubKey)
-                                    )
-                            ),
-                    amt
-            );
+        inBackground("Send", () -> {
+            try {
+                Transaction tx = node.createTransaction(receiver, amt);
 
-            node.addTransactionToMempool(tx);
-            node.broadcastTransaction(tx);
+                node.addTransactionToMempool(tx);
+                node.broadcastTransaction(tx);
 
-            System.out.println("Transaction created: " + tx.txId);
+                System.out.println("Transaction created: " + tx.txId);
 
-        } catch (Exception e) {
-            System.out.println("Failed to send transaction: " + e.getMessage());
-        }
+            } catch (Exception e) {
+                System.out.println("Failed to send transaction: " + e.getMessage());
+            }
+        });
+    }
+
+    private void sendFile() {
+        if (node == null) return;
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Payments file (<pubKey> <amount> per line)");
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+
+        java.io.File file = chooser.getSelectedFile();
+        inBackground("Send file", () -> {
+            try {
+                java.util.List<Payment> payments = Payment.readFile(file.toPath());
+                if (payments.isEmpty()) {
+                    System.out.println("No payments in " + file);
+                    return;
+                }
+
+                java.util.List<Transaction> txs = node.createBatchTransactions(payments);
+                java.util.List<Transaction> accepted = node.addTransactionsToMempool(txs);
+                node.broadcastTransactions(accepted);
+
+                System.out.println("Created " + accepted.size() + "/" + txs.size() + " transactions for " + payments.size() + " payments");
+
+            } catch (Exception e) {
+                System.out.println("Failed to send batch: " + e.getMessage());
+            }
+        });
     }
 
     private void balance() {
         if (node != null)
-            System.out.println("Balance: " + node.getBalance());
+            inBackground("Balance", node::printWallet);
     }
 
     private void chain() {
         if (node != null)
-            node.getBlockchain().printChain();
+            inBackground("Chain", () -> node.getBlockchain().printChain());
     }
 
     private void utxo() {
         if (node != null)
-            node.printUTXO();
+            inBackground("UTXO", () -> node.printUTXO());
     }
 
     private void mempool() {
         if (node != null)
-            node.printMempool();
+            inBackground("Mempool", () -> node.printMempool());
+    }
+
+    private void tx() {
+        if (node == null) return;
+
+        String txId = JOptionPane.showInputDialog(this, "Transaction ID:");
+        if (txId != null && !txId.isBlank()) inBackground("Tx", () -> node.printTransaction(txId.trim()));
     }
 
+    private void history() {
+        if (node == null) return;
+
+        String pubKey = JOptionPane.showInputDialog(this, "Public Key (Base64, empty for ours):");
+        if (pubKey == null) return;
+
+        inBackground("History", () -> node.printHistory(pubKey.isBlank() ? null :
+                java.security.KeyFactory.getInstance("RSA")
+                        .generatePublic(
+                                new java.security.spec.X509EncodedKeySpec(
+                                        java.util.Base64.getDecoder().decode(pubKey.trim())
+                                )
+                        )));
+    }
+
+    private void traffic() {
+        if (node != null)
+            inBackground("Traffic", () -> node.printTraffic());
+    }
+
+    private void stats() {
+        if (node != null)
+            inBackground("Stats", () -> node.printStats());
+    }
+
+    //The same button starts a round and, while one is running, cancels it.
     private void mine() {
-        if (node != null) {
-            try {
-                node.mineFromMempool();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        if (node == null) return;
+
+        if (node.isMining()) {
+            node.cancelMining();
+            return;
         }
+
+        mineButton.setText("Stop Mining");
+        inBackground("Mining", node::mineFromMempool);
     }
 
     private void exit() {
-        if (node != null)
+        if (node != null) {
+            node.cancelMining();
             node.disconnect();
+        }
         System.exit(0);
     }
 }
@@ -0,0 +1,19 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Handshake payload, sent with HELLO and answered with one in the ACK. Says which port the node listens on and which
+ * optional protocol features it supports, so each side only uses what the other understands.
+*/
+import java.io.Serializable;
+
+public class Hello implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final int port;
+    public final boolean compression; //Can inflate frames flagged as compressed
+
+    public Hello (int port, boolean compression) {
+        this.port = port;
+        this.compression = compression;
+    }
+}
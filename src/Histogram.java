@@ -0,0 +1,78 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Lock-free latency histogram in the style of HdrHistogram: values land in log-linear buckets (16 per power of two),
+ * so any recorded value is reported within about 6% no matter if it is 2 microseconds or 2 minutes, with a fixed
+ * amount of memory and one atomic increment per record. Values are nanoseconds.
+*/
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record (long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    //Convenience for timing a piece of code: long start = System.nanoTime(); ...; histogram.recordSince(start);
+    public void recordSince (long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count () {
+        return count.sum();
+    }
+
+    public long sum () {
+        return sum.sum();
+    }
+
+    public long max () {
+        return max.get();
+    }
+
+    //Value at the given quantile (0..1), e.g. 0.99 for the 99th percentile. 0 if nothing was recorded.
+    public long quantile (double q) {
+        long total = count();
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(midpointOf(i), max());
+        }
+        return max();
+    }
+
+    private static int bucketOf (long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value); //>= SUB_BUCKET_BITS
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long midpointOf (int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (1L << exponent) + sub * width;
+        return lower + width / 2;
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * Gavin MacFadyen
+ *
+ * One entry of an inventory announcement: "I have the transaction / block with this hash". Gossip only sends these
+ * (in INV messages), and a peer that lacks an object asks for it with GETDATA, so every node downloads each object
+ * once instead of once per neighbour.
+*/
+import java.io.Serializable;
+
+public class InvItem implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String TX = "TX";
+    public static final String BLOCK = "BLOCK";
+    public static final String COMPACT_BLOCK = "COMPACT_BLOCK"; //Only in GETDATA: "send me that block as a CompactBlock"
+
+    public final String type;
+    public final String hash;
+
+    public InvItem (String type, String hash) {
+        this.type = type;
+        this.hash = hash;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Headers-only client for services that only need to know whether a payment is confirmed. It keeps no blocks,
+ * transactions or UTXO set, just one small header per block, and asks a full node for proof of the transactions it
+ * cares about:
+ *     java LightClient <host> <port> [headersFile]
+ *
+ * sync downloads the headers after our tip the same way a full node starts its sync (GET_HEADERS with a locator) and
+ * checks their linkage and proof of work. Each header still arrives with its txIds, since the block hash covers them;
+ * we use them once to compute the block's Merkle root (see MerkleProof) and then drop them. verify asks the node with
+ * GET_PROOF for the transaction and its Merkle branch, and accepts it only if the branch leads to the root we stored
+ * for a block on our header chain. A full node can refuse to answer, but it can't make up a payment.
+ *
+ * The client never says HELLO, so the node answers its requests but doesn't add it as a peer or gossip to it.
+*/
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
+
+public class LightClient {
+    private static final Log log = Log.get("light");
+
+    //What we keep per block: enough to link and locate it, plus the Merkle root of its txIds.
+    static final class StoredHeader implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+        final long timestamp;
+        final String prevHash;
+        final String hash;
+        final String merkleRoot;
+
+        StoredHeader (int index, long timestamp, String prevHash, String hash, String merkleRoot) {
+            this.index = index;
+            this.timestamp = timestamp;
+            this.prevHash = prevHash;
+            this.hash = hash;
+            this.merkleRoot = merkleRoot;
+        }
+
+        StoredHeader (BlockHeader header) {
+            this(header.index, header.timestamp, header.prevHash, header.hash, MerkleProof.root(header.txIds));
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String filename;
+
+    private final ArrayList<StoredHeader> headers;
+    private final Map<String, Integer> heights = new HashMap<>();
+
+    public LightClient (String host, int port, String filename) {
+        this.host = host;
+        this.port = port;
+        this.filename = filename;
+        this.headers = loadHeaders(filename);
+
+        for (StoredHeader header : headers) {
+            heights.put(header.hash, header.index);
+        }
+    }
+
+    //Catches up with the node's chain. Returns how many headers we took (a branch that replaced ours included).
+    public synchronized int sync () throws Exception {
+        try (Connection conn = connect()) {
+            List<StoredHeader> branch = new ArrayList<>();
+            int forkHeight = -1;
+            ArrayList<String> locator = getLocator();
+
+            while (true) {
+                List<BlockHeader> batch = castList(conn.request(new Message("GET_HEADERS", locator)).data);
+                if (batch.isEmpty()) break;
+
+                boolean linked;
+                if (branch.isEmpty()) {
+                    Integer fork = heights.get(batch.get(0).prevHash);
+                    if (fork == null) throw new Exception("headers from " + host + ":" + port + " don't connect to our chain");
+
+                    forkHeight = fork;
+                    StoredHeader parent = headers.get(forkHeight);
+                    linked = Blockchain.checkHeaders(parent.hash, parent.index, parent.timestamp, batch);
+                } else {
+                    StoredHeader last = branch.get(branch.size() - 1);
+                    linked = Blockchain.checkHeaders(last.hash, last.index, last.timestamp, batch);
+                }
+                if (!linked) throw new Exception("invalid headers from " + host + ":" + port);
+
+                //Proof of work checked, the txIds have done their job.
+                for (BlockHeader header : batch) {
+                    branch.add(new StoredHeader(header));
+                }
+                if (batch.size() < ChainSync.MAX_HEADERS) break;
+
+                locator = new ArrayList<>(List.of(batch.get(batch.size() - 1).hash));
+            }
+
+            //Longest chain wins, same rule as the full node.
+            if (branch.isEmpty() || forkHeight + 1 + branch.size() <= headers.size()) return 0;
+
+            if (forkHeight + 1 < headers.size()) {
+                log.info("Switching to a longer branch at height %d", forkHeight);
+                for (StoredHeader dropped : headers.subList(forkHeight + 1, headers.size())) {
+                    heights.remove(dropped.hash);
+                }
+                headers.subList(forkHeight + 1, headers.size()).clear();
+            }
+            for (StoredHeader header : branch) {
+                headers.add(header);
+                heights.put(header.hash, header.index);
+            }
+
+            saveHeaders();
+            return branch.size();
+        }
+    }
+
+    //Asks the node to prove txId is in a block on our header chain. Returns the checked proof, or null if the node
+    //had none. Throws if what it sent doesn't check out.
+    public MerkleProof verify (String txId) throws Exception {
+        Message reply;
+        try (Connection conn = connect()) {
+            reply = conn.request(new Message("GET_PROOF", txId));
+        }
+        if (!(reply.data instanceof MerkleProof)) return null;
+
+        MerkleProof proof = (MerkleProof) reply.data;
+        if (!proof.tx.txId.equals(txId) || !proof.tx.hasValidId()) {
+            throw new Exception("proof is for a different transaction");
+        }
+
+        StoredHeader header;
+        synchronized (this) {
+            header = proof.height >= 0 && proof.height < headers.size() ? headers.get(proof.height) : null;
+        }
+        if (header == null || !header.hash.equals(proof.blockHash)) {
+            throw new Exception("block " + proof.height + " is not on our header chain, sync first");
+        }
+        if (!proof.computeRoot().equals(header.merkleRoot)) {
+            throw new Exception("Merkle branch doesn't match block " + proof.height);
+        }
+        return proof;
+    }
+
+    public synchronized int height () {
+        return headers.size() - 1;
+    }
+
+    //Same shape as Blockchain.getLocator: the last ten hashes, then exponentially further apart, then genesis.
+    private synchronized ArrayList<String> getLocator () {
+        ArrayList<String> locator = new ArrayList<>();
+        int step = 1;
+
+        for (int i = headers.size() - 1; i > 0; i -= step) {
+            locator.add(headers.get(i).hash);
+            if (locator.size() >= 10) step *= 2;
+        }
+
+        locator.add(headers.get(0).hash);
+        return locator;
+    }
+
+    // ───────────────────────── WIRE ─────────────────────────
+    private Connection connect () throws IOException {
+        return new Connection(host, port);
+    }
+
+    //One request at a time over a plain blocking socket, in PeerConnection's frame format. Without a HELLO nothing is
+    //compressed and the node sends us nothing but answers, anything else (a keep-alive PING) is skipped.
+    private static final class Connection implements Closeable {
+        private final Socket socket = new Socket();
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private long nextRequestId = 1;
+
+        Connection (String host, int port) throws IOException {
+            try {
+                socket.connect(new InetSocketAddress(host, port), NodeConfig.CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout((int) NodeConfig.REQUEST_TIMEOUT_MS);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        Message request (Message msg) throws Exception {
+            long requestId = nextRequestId++;
+            byte[] payload = SerializationUtil.serialize(msg);
+
+            out.writeInt(PeerConnection.HEADER_BYTES + payload.length);
+            out.writeLong(requestId);
+            out.writeByte(PeerConnection.FLAG_EXPECTS_RESPONSE);
+            out.write(payload);
+            out.flush();
+
+            while (true) {
+                int length = in.readInt();
+                if (length < PeerConnection.HEADER_BYTES || length > NodeConfig.MAX_FRAME_BYTES) {
+                    throw new IOException("bad frame length " + length);
+                }
+
+                long id = in.readLong();
+                byte flags = in.readByte();
+                byte[] body = new byte[length - PeerConnection.HEADER_BYTES];
+                in.readFully(body);
+
+                if ((flags & PeerConnection.FLAG_RESPONSE) == 0 || id != requestId) continue;
+                if ((flags & PeerConnection.FLAG_COMPRESSED) != 0) throw new IOException("unexpected compressed frame");
+
+                return (Message) SerializationUtil.deserialize(body);
+            }
+        }
+
+        @Override
+        public void close () throws IOException {
+            socket.close();
+        }
+    }
+
+    // ───────────────────────── STORAGE ─────────────────────────
+    private synchronized void saveHeaders () {
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            out.writeObject(headers);
+        } catch (Exception e) {
+            log.error("Could not save headers to %s", filename, e);
+        }
+    }
+
+    //Starts from genesis if there is no (readable) file, which every node has in common.
+    private static ArrayList<StoredHeader> loadHeaders (String filename) {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+            return castList(in.readObject());
+        } catch (FileNotFoundException e) {
+            //First start
+        } catch (Exception e) {
+            log.warn("Could not read headers from %s, starting over: %s", filename, e.getMessage());
+        }
+
+        ArrayList<StoredHeader> genesisOnly = new ArrayList<>();
+        genesisOnly.add(new StoredHeader(new BlockHeader(Blockchain.createGenesisBlock())));
+        return genesisOnly;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ArrayList<T> castList (Object data) {
+        return data instanceof List ? new ArrayList<>((List<T>) data) : new ArrayList<>();
+    }
+
+    // ───────────────────────── CLI ─────────────────────────
+    public static void main (String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: java LightClient <host> <port> [headersFile]");
+            return;
+        }
+
+        String filename = args.length == 3 ? args[2] : "headers_" + args[0] + "_" + args[1] + ".dat";
+        LightClient client = new LightClient(args[0], Integer.parseInt(args[1]), filename);
+        System.out.println("Light client for " + args[0] + ":" + args[1] + ", " + (client.height() + 1) + " headers in " + filename);
+        printHelp();
+
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty()) continue;
+
+            String[] parts = line.split("\\s+");
+            try {
+                switch (parts[0].toLowerCase()) {
+                    case "help" -> printHelp();
+                    case "sync" -> {
+                        int added = client.sync();
+                        System.out.println("Height " + client.height() + (added > 0 ? " (" + added + " new headers)" : ", up to date"));
+                    }
+                    case "verify" -> {
+                        if (parts.length < 2 || parts.length > 3) {
+                            System.out.println("Usage: verify <txId> [<pubKeyBase64>]");
+                            break;
+                        }
+
+                        MerkleProof proof = client.verify(parts[1]);
+                        if (proof == null) {
+                            System.out.println("Not confirmed (the node has no proof for it)");
+                            break;
+                        }
+
+                        System.out.println("Confirmed in block " + proof.height + ", " + (client.height() - proof.height + 1)
+                                + " confirmation(s), proof of " + proof.branch.size() + " hashes");
+                        if (parts.length == 3) {
+                            PublicKey payee = KeyFactory.getInstance("RSA")
+                                    .generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(parts[2])));
+                            long paid = 0;
+                            for (TransactionOutput out : proof.tx.outputs) {
+                                if (out.recipient.equals(payee)) paid += out.amount;
+                            }
+                            System.out.println("Pays " + paid + " to that key");
+                        }
+                    }
+                    case "height" -> System.out.println("Height " + client.height());
+                    case "exit" -> {
+                        Log.flush();
+                        return;
+                    }
+                    default -> System.out.println("Unknown command. Type 'help'.");
+                }
+            } catch (Exception e) {
+                System.out.println("Failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void printHelp () {
+        System.out.println("""
+        Commands:
+          help                        Show this help
+          sync                        Download and check the headers after our tip
+          verify <txId> [<pubKey>]    Check a transaction is confirmed (and what it pays that key)
+          height                      Height of our header chain
+          exit                        Quit
+        """);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Asynchronous logger. Threads doing consensus or network work never write to the console themselves: a log call
+ * checks the level, puts one record into a lock-free ring buffer and returns. A background thread formats the
+ * records and prints them in batches, so a slow console (or the GUI's text area) can't throttle block validation.
+ *
+ * Every subsystem has its own logger and level:
+ *     private static final Log log = Log.get("chain");
+ *     log.info("Accepted block %d", block.index);          //formatted on the writer thread, not here
+ *     log.debug(() -> "computed = " + block.computeHash()); //not even evaluated unless debug is on
+ * The default level is NodeConfig.LOG_LEVEL; one subsystem can be changed with -Dchint.logLevel.<subsystem>=debug,
+ * or at runtime with setLevel. If the buffer is full, records are dropped (and counted) rather than waited for.
+ * A last Throwable argument is printed with its stack trace.
+*/
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+public final class Log {
+    public enum Level { OFF, ERROR, WARN, INFO, DEBUG, TRACE }
+
+    private static final Map<String, Log> loggers = new ConcurrentHashMap<>();
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    //The ring: producers claim a sequence number with a CAS on tail and publish their record in that slot, the writer
+    //takes records in sequence order from head and clears the slot. A claimed slot that is still null just hasn't been
+    //published yet, the writer waits for it.
+    private static final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<>(powerOfTwo(NodeConfig.LOG_BUFFER));
+    private static final int mask = ring.length() - 1;
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0;    //Only the writer moves this
+    private static volatile long written = 0; //Records that made it to the console, for flush
+    private static final LongAdder dropped = new LongAdder();
+
+    private static volatile boolean writerParked = false;
+    private static final Thread writer = new Thread(Log::drain, "log-writer");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private final String subsystem;
+    private volatile Level level;
+
+    private Log (String subsystem) {
+        this.subsystem = subsystem;
+        this.level = parse(System.getProperty("chint.logLevel." + subsystem), parse(NodeConfig.LOG_LEVEL, Level.INFO));
+    }
+
+    public static Log get (String subsystem) {
+        return loggers.computeIfAbsent(subsystem, Log::new);
+    }
+
+    //Changes one subsystem's level, or every subsystem's with "all". Returns false for an unknown level name.
+    public static boolean setLevel (String subsystem, String levelName) {
+        Level level = parse(levelName, null);
+        if (level == null) return false;
+
+        if (subsystem.equals("all")) {
+            for (Log log : loggers.values()) log.level = level;
+        } else {
+            get(subsystem).level = level;
+        }
+        return true;
+    }
+
+    //Every subsystem that logged so far, with its level.
+    public static String describeLevels () {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Log> entry : new TreeMap<>(loggers).entrySet()) {
+            sb.append(String.format("%-8s %s%n", entry.getKey(), entry.getValue().level.name().toLowerCase()));
+        }
+        return sb.toString();
+    }
+
+    public boolean isEnabled (Level level) {
+        return level.ordinal() <= this.level.ordinal();
+    }
+
+    public void error (String format, Object... args) { log(Level.ERROR, format, args, null); }
+    public void warn (String format, Object... args) { log(Level.WARN, format, args, null); }
+    public void info (String format, Object... args) { log(Level.INFO, format, args, null); }
+    public void debug (String format, Object... args) { log(Level.DEBUG, format, args, null); }
+    public void trace (String format, Object... args) { log(Level.TRACE, format, args, null); }
+
+    public void error (Supplier<String> message) { log(Level.ERROR, null, null, message); }
+    public void warn (Supplier<String> message) { log(Level.WARN, null, null, message); }
+    public void info (Supplier<String> message) { log(Level.INFO, null, null, message); }
+    public void debug (Supplier<String> message) { log(Level.DEBUG, null, null, message); }
+    public void trace (Supplier<String> message) { log(Level.TRACE, null, null, message); }
+
+    private void log (Level level, String format, Object[] args, Supplier<String> message) {
+        if (!isEnabled(level)) return;
+
+        Record record = new Record(System.currentTimeMillis(), level, subsystem, format, args, message);
+
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= ring.length()) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        ring.set((int) (seq & mask), record);
+        if (writerParked) LockSupport.unpark(writer);
+    }
+
+    //Waits (a little) until everything logged so far is on the console. Runs on exit.
+    public static void flush () {
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + 2000;
+
+        while (written < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(writer);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    //The writer thread: takes whatever is in the ring, formats it into one string and prints that in one go.
+    private static void drain () {
+        StringBuilder batch = new StringBuilder();
+
+        while (true) {
+            int taken = 0;
+            long seq = head;
+
+            while (taken < 1024) {
+                int slot = (int) (seq & mask);
+                Record record = ring.get(slot);
+                if (record == null) {
+                    if (seq == tail.get()) break; //Empty
+                    Thread.onSpinWait();          //Claimed but not published yet
+                    continue;
+                }
+
+                ring.set(slot, null);
+                head = ++seq;
+                format(record, batch);
+                taken++;
+            }
+
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                batch.append(TIME.format(LocalTime.now())).append(" WARN  [log] ").append(lost)
+                        .append(" log messages dropped, the buffer was full").append(System.lineSeparator());
+            }
+
+            if (batch.length() > 0) {
+                System.out.print(batch);
+                System.out.flush();
+                batch.setLength(0);
+                written = seq;
+                continue;
+            }
+
+            writerParked = true;
+            if (ring.get((int) (head & mask)) == null) LockSupport.parkNanos(100_000_000L);
+            writerParked = false;
+        }
+    }
+
+    private static void format (Record record, StringBuilder out) {
+        String message;
+        Throwable error = null;
+
+        try {
+            if (record.message != null) {
+                message = record.message.get();
+            } else {
+                Object[] args = record.args;
+                if (args.length > 0 && args[args.length - 1] instanceof Throwable) error = (Throwable) args[args.length - 1];
+                message = args.length == 0 ? record.format : String.format(record.format, args);
+            }
+        } catch (RuntimeException e) {
+            message = "(could not format log message: " + e + ")";
+        }
+
+        out.append(TIME.format(LocalTime.ofInstant(Instant.ofEpochMilli(record.time), ZoneId.systemDefault())))
+                .append(' ').append(String.format("%-5s", record.level.name()))
+                .append(" [").append(record.subsystem).append("] ")
+                .append(message).append(System.lineSeparator());
+
+        if (error != null) {
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            out.append(trace);
+        }
+    }
+
+    private static Level parse (String name, Level fallback) {
+        if (name == null) return fallback;
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    private static int powerOfTwo (int size) {
+        int n = Integer.highestOneBit(Math.max(size, 2));
+        return n < size ? n << 1 : n;
+    }
+
+    private static final class Record {
+        final long time;
+        final Level level;
+        final String subsystem;
+        final String format;
+        final Object[] args;
+        final Supplier<String> message;
+
+        Record (long time, Level level, String subsystem, String format, Object[] args, Supplier<String> message) {
+            this.time = time;
+            this.level = level;
+            this.subsystem = subsystem;
+            this.format = format;
+            this.args = args;
+            this.message = message;
+        }
+    }
+}
@@ -7,7 +7,9 @@
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.nio.file.Path;
 import java.util.Base64;
+import java.util.List;
 import java.util.Scanner;
 
 public class Main {
@@ -44,8 +46,14 @@ public class Main {
                     node.syncWithPeer(parts[1], Integer.parseInt(parts[2]));
                 }
                 case "send" -> {
+                    if (parts.length == 3 && parts[1].equals("-f")) {
+                        sendFile(node, parts[2]);
+                        break;
+                    }
+
                     if (parts.length != 3) {
                         System.out.println("Usage: send <receiverPubKeyBase64> <amount>");
+                        System.out.println("       send -f <paymentsFile>");
                         break;
                     }
 
@@ -71,10 +79,55 @@ public class Main {
                 case "chain" -> node.getBlockchain().printChain();
                 case "utxo" -> node.printUTXO();
                 case "mempool" -> node.printMempool();
+                case "traffic" -> node.printTraffic();
+                case "stats" -> node.printStats();
                 case "mine" -> node.mineFromMempool();
+                case "log" -> {
+                    if (parts.length == 1) {
+                        System.out.print(Log.describeLevels());
+                    } else if (parts.length != 3 || !Log.setLevel(parts[1], parts[2])) {
+                        System.out.println("Usage: log <subsystem|all> <off|error|warn|info|debug|trace>");
+                    }
+                }
+                case "tx" -> {
+                    if (parts.length != 2) {
+                        System.out.println("Usage: tx <txId>");
+                        break;
+                    }
+                    node.printTransaction(parts[1]);
+                }
+                case "history" -> {
+                    if (parts.length > 2) {
+                        System.out.println("Usage: history [<pubKeyBase64>]");
+                        break;
+                    }
+
+                    PublicKey owner = parts.length == 1 ? null : KeyFactory.getInstance("RSA")
+                            .generatePublic(new X509EncodedKeySpec(
+                                    Base64.getDecoder().decode(parts[1])
+                            ));
+                    node.printHistory(owner);
+                }
                 case "balance" -> {
                     long bal = node.getBalance();
-                    System.out.println("Balance: " + bal);
+                    System.out.println("Balance: " + bal + " (" + node.getUnconfirmedBalance() + " with pending transactions)");
+                }
+                case "wallet" -> node.printWallet();
+                case "consolidate" -> {
+                    try {
+                        Transaction tx = node.createConsolidation();
+                        if (tx == null) {
+                            System.out.println("Nothing to consolidate");
+                            break;
+                        }
+                        node.addTransactionToMempool(tx);
+                        node.broadcastTransaction(tx);
+
+                        System.out.println("Consolidated " + tx.inputs.size() + " coins: " + tx.txId);
+
+                    } catch (Exception e) {
+                        System.out.println("Failed to consolidate: " + e.getMessage());
+                    }
                 }
                 case "exit" -> {
                     node.disconnect();
@@ -85,6 +138,26 @@ public class Main {
         }
     }
 
+    //Bulk payout from a file with one "<pubKey> <amount>" per line, see Payment.
+    private static void sendFile(Node node, String path) {
+        try {
+            List<Payment> payments = Payment.readFile(Path.of(path));
+            if (payments.isEmpty()) {
+                System.out.println("No payments in " + path);
+                return;
+            }
+
+            List<Transaction> txs = node.createBatchTransactions(payments);
+            List<Transaction> accepted = node.addTransactionsToMempool(txs);
+            node.broadcastTransactions(accepted);
+
+            System.out.println("Created " + accepted.size() + "/" + txs.size() + " transactions for " + payments.size() + " payments");
+
+        } catch (Exception e) {
+            System.out.println("Failed to send batch: " + e.getMessage());
+        }
+    }
+
     private static void printHelp() {
         System.out.println("""
         Commands:
@@ -92,11 +165,19 @@ public class Main {
           connect <ip> <port>     Connect to another node
           peers                   List connected peers
           send <pubKey> <amount>  Create + broadcast transaction
+          send -f <file>          Bulk payout, one "<pubKey> <amount>" per line
           balance                 Show this node's balance
+          wallet                  Confirmed/unconfirmed balance and coin count
+          consolidate             Merge our smallest coins into one
           chain                   Print blockchain summary
           utxo                    Print UTXO set (balances)
           mempool                 Show pending transactions
+          tx <txId>               Look up a transaction (block, inputs, outputs)
+          history [<pubKey>]      Received and spent outputs of a key (default: ours)
+          traffic                 Messages and bytes sent/received per type
+          stats                   Node metrics: counters, gauges, latencies
           mine                    Mine block from mempool
+          log [<sub> <level>]     Show or change log levels (chain, sync, net, node, tx, all)
           exit                    Shutdown node
         """);
     }
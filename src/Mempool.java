@@ -0,0 +1,254 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Holds transactions that are valid against our current chain but are not mined yet. The mempool follows the chain
+ * instead of being thrown away: a new block only removes the transactions it confirmed (or conflicts with), and a reorg
+ * hands the transactions of the disconnected blocks back to the pool.
+*/
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+public class Mempool {
+    //Told about every transaction that enters or leaves the pool (the wallet follows its own pending transactions this
+    //way). Called with the pool's locks held, so it must be quick and must not call back into the mempool.
+    public interface Observer {
+        Observer NONE = new Observer() {};
+
+        default void added (Transaction tx) {}
+
+        default void removed (Transaction tx) {}
+    }
+
+    private final Blockchain blockchain;
+    private final MetricsRegistry metrics;
+    private volatile Observer observer = Observer.NONE;
+
+    private final Map<String, Transaction> transactions = new ConcurrentHashMap<>();
+
+    //outputId -> txId of the pending transaction spending it, so conflicts can be found without scanning the pool.
+    //Claiming an output is a single putIfAbsent, which is what makes concurrent admission safe.
+    private final Map<String, String> spentOutputs = new ConcurrentHashMap<>();
+
+    //Admissions take the read side, block connects and reorgs the write side. That way an admission can never check
+    //its inputs against one chain state and land in the pool after the cleanup for the next one already ran.
+    private final ReentrantReadWriteLock chainLock = new ReentrantReadWriteLock();
+
+    public Mempool (Blockchain blockchain, MetricsRegistry metrics) {
+        this.blockchain = blockchain;
+        this.metrics = metrics;
+    }
+
+    //Admission runs in phases so handler threads don't queue up behind each other:
+    // 1. stateless checks (shape, amounts, RSA signature) with no locks at all,
+    // 2. a compare-and-set per input in spentOutputs; the first transaction to claim an output wins,
+    // 3. the UTXO check against the chain, after which the transaction becomes visible in the pool.
+    //Admissions share the read side of chainLock, so they only wait for block connects and reorgs, never each other.
+    public void add (Transaction tx) throws Exception {
+        FlightEvents.MempoolAdmission event = new FlightEvents.MempoolAdmission();
+        event.begin();
+
+        long start = System.nanoTime();
+        boolean admitted = false;
+        try {
+            checkAndAdmit(tx);
+            admitted = true;
+        } catch (Exception e) {
+            event.reason = e.getMessage();
+            throw e;
+        } finally {
+            metrics.histogram("chint_mempool_admission_seconds").recordSince(start);
+            metrics.counter(admitted ? "chint_mempool_admitted_total" : "chint_mempool_rejected_total").increment();
+
+            if (event.shouldCommit()) {
+                event.txId = tx.txId;
+                event.inputs = tx.inputs.size();
+                event.outputs = tx.outputs.size();
+                event.accepted = admitted;
+                event.commit();
+            }
+        }
+    }
+
+    private void checkAndAdmit (Transaction tx) throws Exception {
+        if (transactions.containsKey(tx.txId)) {
+            throw new Exception("Already in mempool");
+        }
+
+        //Coinbase transactions only belong in a block, never loose in the pool.
+        if (tx.inputs.isEmpty() || !blockchain.checkStateless(tx)) {
+            throw new Exception("Invalid transaction");
+        }
+
+        chainLock.readLock().lock();
+        try {
+            admit(tx);
+        } finally {
+            chainLock.readLock().unlock();
+        }
+    }
+
+    //Batch admission, every transaction goes through add on its own worker. Returns the transactions that made it in.
+    public List<Transaction> addAll (List<Transaction> txs) {
+        return txs.parallelStream()
+                .filter(tx -> {
+                    try {
+                        add(tx);
+                        return true;
+                    } catch (Exception e) {
+                        return false;
+                    }
+                })
+                .collect(Collectors.toList());
+    }
+
+    //Claims each input, then checks the inputs against the chain. If anything fails the claims made so far are
+    //released again, so a rejected transaction never blocks a valid one.
+    private void admit (Transaction tx) throws Exception {
+        List<String> claimed = new ArrayList<>();
+
+        try {
+            for (TransactionInput in : tx.inputs) {
+                String owner = spentOutputs.putIfAbsent(in.outputId, tx.txId);
+                if (owner != null) {
+                    throw new Exception(owner.equals(tx.txId) ? "Already in mempool" : "Double-spend in mempool");
+                }
+                claimed.add(in.outputId);
+            }
+
+            if (!blockchain.checkInputs(tx)) {
+                throw new Exception("Invalid transaction");
+            }
+
+            transactions.put(tx.txId, tx);
+            claimed.clear(); //Keep the claims
+            observer.added(tx);
+        } finally {
+            for (String outputId : claimed) {
+                spentOutputs.remove(outputId, tx.txId);
+            }
+        }
+    }
+
+    //Drops a transaction and releases its input locks.
+    private void remove (Transaction tx) {
+        if (transactions.remove(tx.txId) == null) return;
+
+        for (TransactionInput in : tx.inputs) {
+            spentOutputs.remove(in.outputId, tx.txId);
+        }
+        observer.removed(tx);
+    }
+
+    //Called once a block is on our chain. Its own transactions are confirmed, and any pending transaction that spends
+    //one of the same outputs can never be mined anymore. Everything else stays in the pool.
+    public void removeForBlock (Block block) {
+        chainLock.writeLock().lock();
+        try {
+            for (Transaction tx : block.transactions) {
+                remove(tx);
+
+                for (TransactionInput in : tx.inputs) {
+                    String conflictId = spentOutputs.get(in.outputId);
+                    Transaction conflict = conflictId == null ? null : transactions.get(conflictId);
+                    if (conflict != null) {
+                        remove(conflict);
+                    }
+                }
+            }
+        } finally {
+            chainLock.writeLock().unlock();
+        }
+    }
+
+    //Called after the chain switched branches. Only transactions that touch an output created or spent by one of the
+    //swapped blocks can have changed validity, so those are the only ones we re-check.
+    public void reorganize (ChainReorg reorg) {
+        chainLock.writeLock().lock();
+        try {
+            reinsert(reorg);
+        } finally {
+            chainLock.writeLock().unlock();
+        }
+    }
+
+    private void reinsert (ChainReorg reorg) {
+        Set<String> changedOutputs = new HashSet<>();
+        for (Block block : reorg.disconnected) collectOutputs(block, changedOutputs);
+        for (Block block : reorg.connected) collectOutputs(block, changedOutputs);
+
+        //Transactions the new branch confirmed, or conflicts with, are gone for good.
+        for (Block block : reorg.connected) {
+            removeForBlock(block);
+        }
+
+        //Pull out pending transactions whose inputs moved.
+        List<Transaction> affected = new ArrayList<>();
+        for (Transaction tx : transactions.values()) {
+            for (TransactionInput in : tx.inputs) {
+                if (changedOutputs.contains(in.outputId)) {
+                    affected.add(tx);
+                    break;
+                }
+            }
+        }
+        for (Transaction tx : affected) {
+            remove(tx);
+        }
+
+        //Transactions from the disconnected blocks go back first, they were already confirmed once.
+        for (Block block : reorg.disconnected) {
+            for (Transaction tx : block.transactions) {
+                if (tx.inputs.isEmpty()) continue; //Coinbase rewards of the old branch are simply lost
+
+                try {
+                    if (blockchain.checkStateless(tx)) admit(tx);
+                } catch (Exception ignored) {}
+            }
+        }
+
+        //Their signatures were verified on admission, so only the chain-dependent part needs to run again.
+        for (Transaction tx : affected) {
+            try {
+                admit(tx);
+            } catch (Exception ignored) {}
+        }
+    }
+
+    private void collectOutputs (Block block, Set<String> outputs) {
+        for (Transaction tx : block.transactions) {
+            for (TransactionInput in : tx.inputs) outputs.add(in.outputId);
+            for (TransactionOutput out : tx.outputs) outputs.add(out.id);
+        }
+    }
+
+    public void setObserver (Observer observer) {
+        this.observer = observer == null ? Observer.NONE : observer;
+    }
+
+    public boolean contains (String txId) {
+        return transactions.containsKey(txId);
+    }
+
+    //The pending transaction with this txId, or null.
+    public Transaction get (String txId) {
+        return transactions.get(txId);
+    }
+
+    public boolean isSpent (String outputId) {
+        return spentOutputs.containsKey(outputId);
+    }
+
+    public ArrayList<Transaction> getTransactions () {
+        return new ArrayList<>(transactions.values());
+    }
+
+    public int size () {
+        return transactions.size();
+    }
+
+    public boolean isEmpty () {
+        return transactions.isEmpty();
+    }
+}
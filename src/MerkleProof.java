@@ -0,0 +1,84 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Proof that a transaction is in a block, for light clients (see LightClient). The block's txIds are the leaves of a
+ * binary hash tree (each parent is the sha256 of its two children, a level with an odd count pairs its last node with
+ * itself), and the proof is the transaction plus the sibling of every node on the way from its leaf up to the root:
+ * about log2(n) hashes instead of all n txIds.
+ *
+ * Block hashes cover the concatenated txIds, not this root, so the root itself comes from the light client: it checks
+ * each header's proof of work with the txIds when it downloads the header, keeps only the root, and checks proofs
+ * against that later.
+*/
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MerkleProof implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final Transaction tx;
+    public final String blockHash;
+    public final int height;
+    public final int position;
+    public final List<String> branch; //Siblings, leaf level first
+
+    MerkleProof (Transaction tx, String blockHash, int height, int position, List<String> branch) {
+        this.tx = tx;
+        this.blockHash = blockHash;
+        this.height = height;
+        this.position = position;
+        this.branch = branch;
+    }
+
+    //Proof for the transaction at position in block.
+    public static MerkleProof build (Block block, int position) {
+        List<String> level = new ArrayList<>();
+        for (Transaction tx : block.transactions) {
+            level.add(tx.txId);
+        }
+
+        List<String> branch = new ArrayList<>();
+        int index = position;
+        while (level.size() > 1) {
+            int sibling = index ^ 1;
+            branch.add(level.get(Math.min(sibling, level.size() - 1)));
+            level = parents(level);
+            index >>= 1;
+        }
+
+        return new MerkleProof(block.transactions.get(position), block.hash, block.index, position, branch);
+    }
+
+    public static String root (List<String> txIds) {
+        if (txIds.isEmpty()) return "";
+
+        List<String> level = txIds;
+        while (level.size() > 1) {
+            level = parents(level);
+        }
+        return level.get(0);
+    }
+
+    //The root this proof leads to, to compare with the one we keep for the block.
+    public String computeRoot () {
+        String hash = tx.txId;
+        int index = position;
+
+        for (String sibling : branch) {
+            hash = (index & 1) == 0 ? HashUtil.sha256(hash + sibling) : HashUtil.sha256(sibling + hash);
+            index >>= 1;
+        }
+        return hash;
+    }
+
+    private static List<String> parents (List<String> level) {
+        List<String> parents = new ArrayList<>((level.size() + 1) / 2);
+        for (int i = 0; i < level.size(); i += 2) {
+            String left = level.get(i);
+            String right = i + 1 < level.size() ? level.get(i + 1) : left;
+            parents.add(HashUtil.sha256(left + right));
+        }
+        return parents;
+    }
+}
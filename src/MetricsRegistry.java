@@ -0,0 +1,116 @@
+/*
+ * Gavin MacFadyen
+ *
+ * One node's metrics: counters (LongAdder), gauges (read when asked for) and latency histograms, each registered
+ * under a Prometheus style name that may carry labels, e.g. chint_messages_total{type="INV"}. Lookups are a single
+ * ConcurrentHashMap get once a metric exists, so instrumenting hot paths costs next to nothing.
+ *
+ * Everything can be printed for the stats command (describe) or exported in the Prometheus text format (prometheus),
+ * which MetricsServer serves over HTTP on localhost.
+*/
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+public class MetricsRegistry {
+    //For code running without a node (tools, benchmarks): records like any registry, nobody looks at it.
+    public static final MetricsRegistry DETACHED = new MetricsRegistry();
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    public LongAdder counter (String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public LongAdder counter (String name, String label, String value) {
+        return counter(name + "{" + label + "=\"" + value + "\"}");
+    }
+
+    public void gauge (String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public Histogram histogram (String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    public Histogram histogram (String name, String label, String value) {
+        return histogram(name + "{" + label + "=\"" + value + "\"}");
+    }
+
+    //Human readable dump for the stats command. Latencies in milliseconds.
+    public String describe () {
+        StringBuilder out = new StringBuilder();
+
+        for (Map.Entry<String, DoubleSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            out.append(String.format("%-55s %14s%n", gauge.getKey(), format(gauge.getValue().getAsDouble())));
+        }
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            out.append(String.format("%-55s %14d%n", counter.getKey(), counter.getValue().sum()));
+        }
+
+        if (!histograms.isEmpty()) {
+            out.append(String.format("%-55s %8s %9s %9s %9s %9s%n", "latency (ms)", "count", "p50", "p99", "p99.9", "max"));
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram h = entry.getValue();
+            out.append(String.format("%-55s %8d %9.3f %9.3f %9.3f %9.3f%n", entry.getKey(), h.count(),
+                    h.quantile(0.5) / 1e6, h.quantile(0.99) / 1e6, h.quantile(0.999) / 1e6, h.max() / 1e6));
+        }
+        return out.toString();
+    }
+
+    //Prometheus text exposition format. Histograms are exported as summaries in seconds.
+    public String prometheus () {
+        StringBuilder out = new StringBuilder();
+        String lastFamily = null;
+
+        for (Map.Entry<String, DoubleSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            lastFamily = typeLine(out, gauge.getKey(), "gauge", lastFamily);
+            out.append(gauge.getKey()).append(' ').append(gauge.getValue().getAsDouble()).append('\n');
+        }
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            lastFamily = typeLine(out, counter.getKey(), "counter", lastFamily);
+            out.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String name = entry.getKey();
+            Histogram h = entry.getValue();
+            lastFamily = typeLine(out, name, "summary", lastFamily);
+
+            String family = family(name);
+            String labels = name.substring(family.length()); //"" or {a="b"}
+            for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                out.append(family).append(withLabel(labels, "quantile=\"" + q + "\"")).append(' ')
+                        .append(h.quantile(q) / 1e9).append('\n');
+            }
+            out.append(family).append("_sum").append(labels).append(' ').append(h.sum() / 1e9).append('\n');
+            out.append(family).append("_count").append(labels).append(' ').append(h.count()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String typeLine (StringBuilder out, String name, String type, String lastFamily) {
+        String family = family(name);
+        if (!family.equals(lastFamily)) out.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+        return family;
+    }
+
+    private static String family (String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    private static String withLabel (String labels, String label) {
+        if (labels.isEmpty()) return "{" + label + "}";
+        return labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String format (double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.format("%.2f", value);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Serves a node's metrics at http://127.0.0.1:<port>/metrics in the Prometheus text format. Bound to the loopback
+ * address only, so the numbers are visible to a scraper on the same machine and nobody else.
+*/
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+public class MetricsServer {
+    private final HttpServer server;
+
+    public MetricsServer (int port, MetricsRegistry metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    public void start () {
+        server.start();
+    }
+
+    public void stop () {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Collects items for a short time window and hands them on as one list. The window opens with the first item; the
+ * batch goes out when the window closes or as soon as it holds maxItems, whichever comes first. Trades a few
+ * milliseconds of latency for sending one message where there would have been hundreds.
+*/
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class MicroBatcher<T> {
+    private final long windowMs;
+    private final int maxItems;
+    private final Consumer<List<T>> sink;
+
+    private final ScheduledExecutorService timer;
+
+    private List<T> batch = new ArrayList<>();
+    private long generation = 0; //Which batch the pending timer belongs to
+
+    public MicroBatcher (String name, long windowMs, int maxItems, Consumer<List<T>> sink) {
+        this.windowMs = windowMs;
+        this.maxItems = maxItems;
+        this.sink = sink;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void add (T item) {
+        addAll(List.of(item));
+    }
+
+    public void addAll (List<T> items) {
+        List<List<T>> full = new ArrayList<>();
+
+        synchronized (this) {
+            for (T item : items) {
+                if (batch.isEmpty()) {
+                    long current = generation;
+                    timer.schedule(() -> flush(current), windowMs, TimeUnit.MILLISECONDS);
+                }
+
+                batch.add(item);
+                if (batch.size() >= maxItems) full.add(take());
+            }
+        }
+
+        //The sink runs outside the lock so producers never wait for it.
+        for (List<T> ready : full) {
+            sink.accept(ready);
+        }
+    }
+
+    private void flush (long expected) {
+        List<T> ready;
+        synchronized (this) {
+            if (generation != expected || batch.isEmpty()) return; //Already went out because it filled up
+            ready = take();
+        }
+        sink.accept(ready);
+    }
+
+    //Caller holds the lock.
+    private List<T> take () {
+        List<T> ready = batch;
+        batch = new ArrayList<>();
+        generation++;
+        return ready;
+    }
+}
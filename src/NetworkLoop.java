@@ -0,0 +1,194 @@
+/*
+ * Gavin MacFadyen
+ *
+ * The node's whole network I/O runs on this one thread. It is a non-blocking Selector loop that accepts peers,
+ * finishes outbound connects, reads frames and writes queued frames for every connection, so the number of
+ * threads no longer grows with the number of peers. Decoded messages are handed to the node's handler pool
+ * (see PeerConnection), the loop itself never runs node logic.
+ *
+ * Once a second it also does housekeeping: connects that take too long are aborted, quiet connections get a PING
+ * so the other side knows we are alive, and connections we heard nothing from for IDLE_TIMEOUT_MS are closed, as
+ * are connections whose peer stopped taking our data for SEND_TIMEOUT_MS.
+*/
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+public class NetworkLoop implements Runnable {
+    private static final Log log = Log.get("net");
+
+    private final Node node;
+    private final ExecutorService handlers;
+    private final ExecutorService replyDecoders;
+    private final Selector selector;
+
+    //Work other threads want done on the loop thread (registering channels, asking for write interest).
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<PeerConnection> connections = ConcurrentHashMap.newKeySet();
+
+    private ServerSocketChannel server;
+    private volatile boolean running = true;
+    private long lastHousekeeping = 0;
+
+    public NetworkLoop (Node node, ExecutorService handlers, ExecutorService replyDecoders) throws IOException {
+        this.node = node;
+        this.handlers = handlers;
+        this.replyDecoders = replyDecoders;
+        this.selector = Selector.open();
+    }
+
+    public void listen (int port) throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    //Starts a non-blocking connect. The returned connection can be used right away, anything sent on it is queued
+    //until the connect finishes; use awaitConnected to find out whether it did.
+    public PeerConnection connect (String host, int port) throws IOException {
+        if (connections.size() >= NodeConfig.MAX_CONNECTIONS) {
+            throw new IOException("Connection limit reached");
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        boolean done = channel.connect(new InetSocketAddress(host, port));
+
+        PeerConnection conn = new PeerConnection(channel, host, this, node, handlers, replyDecoders);
+        conn.setPeerPort(port);
+        connections.add(conn);
+
+        runOnLoop(() -> {
+            try {
+                conn.register(selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+                if (done) conn.onConnected();
+            } catch (IOException e) {
+                conn.close();
+            }
+        });
+        return conn;
+    }
+
+    public void runOnLoop (Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run () {
+        while (running) {
+            try {
+                selector.select(1000);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastHousekeeping >= 1000) {
+                    housekeeping(now);
+                    lastHousekeeping = now;
+                }
+            } catch (IOException e) {
+                log.error("Selector loop error", e);
+            }
+        }
+
+        //Stopped: free the port and the selector, so a node in the same JVM (Simulator) can be started on it again.
+        //Closing the selector also deregisters the connections closed by shutdown, which finishes closing their sockets.
+        try {
+            if (server != null) server.close();
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Could not close the network loop cleanly: %s", e.getMessage());
+        }
+    }
+
+    private void handleKey (SelectionKey key) {
+        if (!key.isValid()) return;
+
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+
+        PeerConnection conn = (PeerConnection) key.attachment();
+        try {
+            if (key.isConnectable()) conn.onConnectable();
+            if (key.isValid() && key.isReadable()) conn.onReadable();
+            if (key.isValid() && key.isWritable()) conn.onWritable();
+        } catch (IOException | CancelledKeyException e) {
+            conn.close();
+        }
+    }
+
+    private void accept () {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                if (connections.size() >= NodeConfig.MAX_CONNECTIONS) {
+                    channel.close(); //Full, the peer can try again later
+                    continue;
+                }
+
+                channel.configureBlocking(false);
+                String host = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+
+                PeerConnection conn = new PeerConnection(channel, host, this, node, handlers, replyDecoders);
+                connections.add(conn);
+                conn.register(selector, SelectionKey.OP_READ);
+                conn.onConnected();
+            }
+        } catch (IOException e) {
+            log.error("Could not accept a connection", e);
+        }
+    }
+
+    private void housekeeping (long now) {
+        for (PeerConnection conn : connections) {
+            if (!conn.isConnected()) {
+                if (now - conn.getCreatedAt() > NodeConfig.CONNECT_TIMEOUT_MS) conn.close();
+                continue;
+            }
+
+            if (now - conn.getLastReceived() > NodeConfig.IDLE_TIMEOUT_MS || conn.isSendStalled(now)) {
+                conn.close();
+            } else if (now - conn.getLastSent() > NodeConfig.IDLE_TIMEOUT_MS / 3) {
+                conn.sendKeepAlive();
+            }
+        }
+    }
+
+    //Called by a connection when it closes.
+    void forget (PeerConnection conn) {
+        connections.remove(conn);
+    }
+
+    public int connectionCount () {
+        return connections.size();
+    }
+
+    //The loop closes the listening socket and the selector itself once it has stopped.
+    public void shutdown () {
+        running = false;
+        for (PeerConnection conn : connections) {
+            conn.close();
+        }
+        selector.wakeup();
+    }
+}
@@ -5,30 +5,106 @@
  * mines blocks, maintains a mempool, and stays synchronized with peers. All consensus rules are enforced by the Blockchain.
 */
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.*;
-import java.net.ConnectException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 
 public class Node {
+    private static final Log log = Log.get("node");
+    private static final Log txLog = Log.get("tx");
     private final int port;
     private final Blockchain blockchain;
-    private final ArrayList<Peer> peers = new ArrayList<>();
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+
+    //One open connection per peer ("host:port"), shared by everything we send to it.
+    private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final Map<String, Object> dialLocks = new ConcurrentHashMap<>();
+    private final Set<String> reconnecting = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "reconnector");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService consolidator = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "consolidation");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean shuttingDown = false;
+
+    //Outgoing tx announcements are collected for TX_RELAY_WINDOW_MS and go out as one INV per peer.
+    private final MicroBatcher<InvItem> txRelay = new MicroBatcher<>(
+            "tx-relay", NodeConfig.TX_RELAY_WINDOW_MS, NodeConfig.TX_RELAY_MAX_ITEMS, this::announce
+    );
+
+    //Peers ("host:port") we refuse to talk to, until the given time.
+    private final Map<String, Long> bannedUntil = new ConcurrentHashMap<>();
+
+    //Counters, gauges and latency histograms for the stats command and the localhost metrics endpoint.
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private MetricsServer metricsServer;
+    private volatile double hashrate = 0; //Hashes per second while mining the last block
+
+    //The mining round in progress, if any, for status displays. Hash count and cancel requests are only looked at every
+    //MINING_CHECK_INTERVAL hashes, so the search loop itself stays free of shared writes.
+    private static final int MINING_CHECK_INTERVAL = 4096;
+    private final AtomicBoolean mining = new AtomicBoolean(false);
+    private volatile boolean miningCancelled = false;
+    private volatile int miningHeight = -1;
+    private volatile long miningHashes = 0;
+    private volatile long miningStart = 0;
+
+    //Package-private for TrafficStats, which keys its rows by message type too.
+    static final Set<String> MESSAGE_TYPES = Set.of(
+            "HELLO", "GET_HEADERS", "GET_BLOCKS", "INV", "GETDATA", "NEW_BLOCK", "CMPCT_BLOCK", "GET_BLOCK_TXN",
+            "NEW_TX", "NEW_TX_BATCH", "GET_PROOF", "DISCONNECT"
+    );
+
+    //Message counts and raw vs. on-the-wire bytes per message type, for all connections.
+    private final TrafficStats trafficStats = new TrafficStats();
+
+    //All socket I/O runs on the network loop, message handlers run on this fixed-size pool.
+    private final ExecutorService handlers = Executors.newFixedThreadPool(NodeConfig.HANDLER_THREADS);
+
+    //Answers to our own requests are decoded on their own threads: a handler waiting for an answer must never have
+    //that answer queued behind it on the handler pool.
+    private final ExecutorService replyDecoders = Executors.newFixedThreadPool(NodeConfig.REPLY_THREADS, r -> {
+        Thread t = new Thread(r, "reply-decoder");
+        t.setDaemon(true);
+        return t;
+    });
+    private NetworkLoop network;
 
     private PrivateKey privateKey;
     private PublicKey publicKey;
 
-    private final Set<Transaction> mempool = ConcurrentHashMap.newKeySet();
-    private final Set<String> seenTransactions = ConcurrentHashMap.newKeySet();
+    private final Mempool mempool;
+    private final Wallet wallet;
+    private final CoinSelection coinSelection;
+    private ChainIndex txIndex; //Null with -Dchint.txIndex=false
+    private final ChainSync chainSync;
+    private final SyncCoordinator syncCoordinator;
 
-    private final Set<String> mempoolSpentUTXOs = ConcurrentHashMap.newKeySet();
+    //Every txId we accepted recently, so gossip duplicates are dropped without validating them again.
+    private final RollingBloomFilter seenTransactions = new RollingBloomFilter(
+            NodeConfig.SEEN_CAPACITY, NodeConfig.SEEN_FP_RATE, NodeConfig.SEEN_HORIZON_MS
+    );
+
+    //Transactions we rejected (see rejectedKey). Most rejections depend on our tip: a tx spending an output from a block
+    //we don't have yet is fine once that block arrives. So this is wiped whenever the chain changes, not just aged out.
+    private final RollingBloomFilter recentRejects = new RollingBloomFilter(
+            NodeConfig.SEEN_CAPACITY, NodeConfig.SEEN_FP_RATE, NodeConfig.SEEN_HORIZON_MS
+    );
+
+    //Inventory we asked a peer for with GETDATA and are still waiting on (hash -> when we asked), so an object announced
+    //by several peers at once is only downloaded from the first of them.
+    private final Map<String, Long> requestedInventory = new ConcurrentHashMap<>();
+
+    private volatile NodeListener listener = NodeListener.NONE;
 
     public Node (int port) throws Exception {
         this.port = port;
@@ -37,13 +113,84 @@ public class Node {
         loadOrCreateKeys();
 
         String filename = "blockchain_" + port + ".dat";
+        long start = System.nanoTime();
         this.blockchain = Blockchain.loadFromDisk(filename);
+        metrics.histogram("chint_chain_load_seconds").recordSince(start);
+        blockchain.setMetrics(metrics);
+
+        if (NodeConfig.TX_INDEX) {
+            start = System.nanoTime();
+            txIndex = ChainIndex.loadFromDisk("txindex_" + port + ".dat");
+            blockchain.setIndex(txIndex);
+            metrics.histogram("chint_tx_index_load_seconds").recordSince(start);
+        }
+
+        this.mempool = new Mempool(blockchain, metrics);
+
+        //Our own coins, followed block by block and through the mempool from here on.
+        this.wallet = new Wallet(publicKey);
+        blockchain.addObserver(wallet);
+        mempool.setObserver(wallet);
+
+        //Whatever the chain did, a transaction we rejected may be valid now.
+        blockchain.addObserver(new ChainObserver() {
+            @Override
+            public void catchUp (List<Block> chain) {
+            }
+
+            @Override
+            public void connect (Block block) {
+                recentRejects.clear();
+            }
+
+            @Override
+            public void disconnect (Block block) {
+                recentRejects.clear();
+            }
+        });
+
+        CoinSelection selection = CoinSelection.byName(NodeConfig.COIN_SELECTION);
+        if (selection == null) {
+            log.warn("Unknown coin selection %s, using bnb", NodeConfig.COIN_SELECTION);
+            selection = CoinSelection.BRANCH_AND_BOUND;
+        }
+        this.coinSelection = selection;
+
+        this.chainSync = new ChainSync(this, blockchain, mempool);
+        this.syncCoordinator = new SyncCoordinator(chainSync, blockchain);
+
+        metrics.gauge("chint_chain_height", () -> blockchain.length() - 1);
+        metrics.gauge("chint_mempool_transactions", mempool::size);
+        metrics.gauge("chint_peers", peers::size);
+        metrics.gauge("chint_connections", () -> network == null ? 0 : network.connectionCount());
+        metrics.gauge("chint_seen_filter_entries", seenTransactions::size);
+        metrics.gauge("chint_hashrate", () -> hashrate);
+        metrics.gauge("chint_wallet_coins", wallet::coinCount);
     }
 
     //Startup, listens for a connection.
-    public void start () {
-        new Thread(this::listen).start();
-        System.out.println("Listening on port " + port + "...");
+    public void start () throws IOException {
+        network = new NetworkLoop(this, handlers, replyDecoders);
+        network.listen(port);
+        new Thread(network, "network-loop").start();
+        log.info("Listening on port %d...", port);
+
+        if (NodeConfig.METRICS_PORT_OFFSET > 0) {
+            int metricsPort = port + NodeConfig.METRICS_PORT_OFFSET;
+            try {
+                metricsServer = new MetricsServer(metricsPort, metrics);
+                metricsServer.start();
+                log.info("Metrics on http://127.0.0.1:%d/metrics", metricsPort);
+            } catch (IOException e) {
+                log.warn("Metrics endpoint unavailable on port %d: %s", metricsPort, e.getMessage());
+            }
+        }
+
+        //On its own thread: a consolidation signs up to CONSOLIDATE_MAX_INPUTS inputs, reconnects shouldn't wait for that.
+        if (NodeConfig.CONSOLIDATE_INTERVAL_MS > 0) {
+            consolidator.scheduleWithFixedDelay(this::consolidateIfQuiet,
+                    NodeConfig.CONSOLIDATE_INTERVAL_MS, NodeConfig.CONSOLIDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
     }
 
     //On startup, we need persistent keys so no node ever overwrites its own key. This method
@@ -72,34 +219,37 @@ public class Node {
         }
     }
 
-    private void listen () {
-        try (ServerSocket server = new ServerSocket(port)) {
-            while (true) {
-                Socket socket = server.accept();
-                new Thread(() -> handleConnection(socket)).start();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     //We need to broadcast to other nodes when we are disconnecting so they can remove this node from their peer list.
     public void disconnect() {
+        if (network == null) return; //Never started
+        shuttingDown = true;
+
         for (Peer peer : peers) {
-            try (
-                Socket socket = new Socket(peer.host, peer.port);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())
-            ) {
-                out.writeObject(new Message("DISCONNECT", port));
-                out.flush();
-                in.readObject();
+            try {
+                connectionTo(peer.host, peer.port).send(new Message("DISCONNECT", port));
             } catch (Exception ignored) {}
         }
+
+        //Let the DISCONNECT frames go out before hanging up.
+        for (PeerConnection conn : connections.values()) {
+            conn.closeWhenFlushed();
+        }
+
+        if (metricsServer != null) metricsServer.stop();
+
+        long deadline = System.currentTimeMillis() + 1000;
+        while (network.connectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        network.shutdown();
     }
 
     //When a new peer joins, we add them to our peer list so we can broadcast to everyone in the network.
-    public void addPeer (String host, int port) {
+    public synchronized void addPeer (String host, int port) {
         for (Peer peer : peers) {
             if (peer.host.equals(host) && peer.port == port) return;
         }
@@ -107,27 +257,18 @@ public class Node {
     }
 
     // Builds and signs a transaction using this node's available UTXOs, but does not commit it.
+    //The wallet picks the coins (see CoinSelection), coins already spent by one of our pending transactions are skipped.
     public Transaction createTransaction(PublicKey recipient, long amount) throws Exception {
+        List<TransactionOutput> selected = wallet.select(amount, coinSelection);
+        if (selected == null) {
+            throw new Exception("Insufficient funds");
+        }
+
         long total = 0;
         List<TransactionInput> inputs = new ArrayList<>();
-
-        //Collect UTXOs owned by this node
-        for (Map.Entry<String, TransactionOutput> entry : blockchain.getUTXO().entrySet()) {
-            TransactionOutput out = entry.getValue();
-
-            if (!out.recipient.equals(publicKey)) continue;
-
-            // Skip UTXOs already locked in mempool
-            if (mempoolSpentUTXOs.contains(out.id)) continue;
-
+        for (TransactionOutput out : selected) {
             inputs.add(new TransactionInput(out.id));
             total += out.amount;
-
-            if (total >= amount) break;
-        }
-
-        if (total < amount) {
-            throw new Exception("Insufficient funds");
         }
 
         //Create outputs
@@ -149,155 +290,513 @@ public class Node {
         return tx;
     }
 
+    //Merges up to CONSOLIDATE_MAX_INPUTS of our smallest coins into a single coin paid to ourselves, so later payments
+    //need fewer inputs. Returns null if we have fewer than two coins to merge.
+    public Transaction createConsolidation() throws Exception {
+        List<TransactionOutput> coins = wallet.spendable();
+        if (coins.size() < 2) return null;
+
+        coins.sort(Comparator.comparingLong(o -> o.amount));
+        coins = coins.subList(0, Math.min(coins.size(), NodeConfig.CONSOLIDATE_MAX_INPUTS));
+
+        long total = 0;
+        List<TransactionInput> inputs = new ArrayList<>();
+        for (TransactionOutput out : coins) {
+            inputs.add(new TransactionInput(out.id));
+            total += out.amount;
+        }
+
+        Transaction tx = new Transaction(publicKey, inputs, List.of(new TransactionOutput(publicKey, total)));
+        tx.sign(privateKey);
+        return tx;
+    }
+
+    //Periodic consolidation (CONSOLIDATE_INTERVAL_MS): only while the network is quiet, so it never competes with real
+    //payments for the next block, and only once enough small coins piled up.
+    private void consolidateIfQuiet () {
+        if (!mempool.isEmpty() || wallet.pendingCount() > 0) return;
+        if (wallet.spendable().size() < NodeConfig.CONSOLIDATE_MIN_COINS) return;
 
-    public synchronized void addTransactionToMempool(Transaction tx) throws Exception {
+        try {
+            Transaction tx = createConsolidation();
+            if (tx == null) return;
 
-        if (!blockchain.validateTransaction(tx)) {
-            throw new Exception("Invalid transaction");
+            addTransactionToMempool(tx);
+            broadcastTransaction(tx);
+            log.info("Consolidated %d coins into one (%s)", tx.inputs.size(), tx.txId);
+        } catch (Exception e) {
+            log.warn("Consolidation failed: %s", e.getMessage());
         }
+    }
 
-        for (TransactionInput in : tx.inputs) {
-            if (mempoolSpentUTXOs.contains(in.outputId)) {
-                throw new Exception("Double-spend in mempool");
+    //Payout batches: builds as few transactions as possible for a list of payments. Our spendable UTXOs are collected in
+    //a single pass and handed out to the transactions in turn, each paying up to BATCH_MAX_OUTPUTS recipients plus change.
+    //Nothing is signed unless the whole batch can be funded, and signing runs in parallel.
+    public List<Transaction> createBatchTransactions(List<Payment> payments) throws Exception {
+        List<TransactionOutput> spendable = wallet.spendable();
+        long available = 0;
+        long needed = 0;
+
+        try {
+            for (TransactionOutput out : spendable) {
+                available = Math.addExact(available, out.amount);
             }
+
+            for (Payment payment : payments) {
+                if (payment.amount <= 0) throw new Exception("Amount must be positive");
+                needed = Math.addExact(needed, payment.amount);
+            }
+        } catch (ArithmeticException e) {
+            throw new Exception("Amount too large");
         }
+        if (available < needed) {
+            throw new Exception("Insufficient funds");
+        }
+
+        List<Transaction> txs = new ArrayList<>();
+        int next = 0; //Next unused UTXO in spendable
+
+        for (int start = 0; start < payments.size(); start += NodeConfig.BATCH_MAX_OUTPUTS) {
+            List<Payment> group = payments.subList(start, Math.min(start + NodeConfig.BATCH_MAX_OUTPUTS, payments.size()));
+
+            List<TransactionOutput> outputs = new ArrayList<>();
+            long amount = 0;
+            for (Payment payment : group) {
+                outputs.add(new TransactionOutput(payment.recipient, payment.amount));
+                amount += payment.amount;
+            }
+
+            List<TransactionInput> inputs = new ArrayList<>();
+            long total = 0;
+            while (total < amount) {
+                TransactionOutput out = spendable.get(next++);
+                inputs.add(new TransactionInput(out.id));
+                total += out.amount;
+            }
+
+            if (total > amount) {
+                outputs.add(new TransactionOutput(publicKey, total - amount));
+            }
+
+            txs.add(new Transaction(publicKey, inputs, outputs));
+        }
+
+        txs.parallelStream().forEach(tx -> {
+            try {
+                tx.sign(privateKey);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
 
+        return txs;
+    }
+
+    public void addTransactionToMempool(Transaction tx) throws Exception {
         mempool.add(tx);
+        listener.transactionAccepted(this, tx);
+    }
 
-        for (TransactionInput in : tx.inputs) {
-            mempoolSpentUTXOs.add(in.outputId);
+    //Admits a batch in one go, see Mempool.addAll. Returns the transactions that were accepted.
+    public List<Transaction> addTransactionsToMempool(List<Transaction> txs) {
+        List<Transaction> accepted = mempool.addAll(txs);
+        for (Transaction tx : accepted) {
+            listener.transactionAccepted(this, tx);
+        }
+        return accepted;
+    }
+
+    //Every message a peer sends us ends up here, with the connection it came in on. Requests (HELLO, GET_HEADERS, ...)
+    //return their answer, gossip returns null since nobody waits for it.
+    public Message handleMessage (PeerConnection conn, Message msg) {
+        //Peers choose the type string, so only our own types get their own metrics.
+        String type = MESSAGE_TYPES.contains(msg.type) ? msg.type : "other";
+        metrics.counter("chint_messages_total", "type", type).increment();
+
+        FlightEvents.MessageHandled event = new FlightEvents.MessageHandled();
+        event.begin();
+
+        long start = System.nanoTime();
+        Message reply = null;
+        try {
+            reply = handle(conn, msg);
+            return reply;
+        } finally {
+            metrics.histogram("chint_message_handling_seconds", "type", type).recordSince(start);
+
+            if (event.shouldCommit()) {
+                event.type = type;
+                event.peer = conn.describePeer();
+                event.reply = reply == null ? null : reply.type;
+                event.commit();
+            }
         }
     }
 
-    //Once connection is found, we can send messages to and from different nodes in the network which have a type and associated data.
-    private void handleConnection (Socket socket) {
-        try (
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream())
-        ) {
-            Message msg = (Message) in.readObject();
+    private Message handle (PeerConnection conn, Message msg) {
+        //Over its rate limit: dropped unread, and it counts against the peer.
+        if (!conn.getLimits().allow(msg)) {
+            misbehaving(conn, 1, "too many " + msg.type + " messages");
+            return null;
+        }
 
+        try {
             switch (msg.type) {
                 case "HELLO":
-                    int peerPort = (Integer) msg.data;
-                    String host = socket.getInetAddress().getHostAddress();
-
-                    addPeer(host, peerPort);
-                    System.out.println("Added peer " + host + ":" + peerPort);
-
-                    out.writeObject(new Message("ACK", null));
-                    out.flush();
-                    break;
-                case "REQUEST_CHAIN":
-                    out.writeObject(new Message("SEND_CHAIN", blockchain));
-                    out.flush();
-                    break;
-                case "NEW_BLOCK":
-                    Block incoming = (Block) msg.data;
+                    Hello hello = (Hello) msg.data;
+                    String host = conn.host;
 
-                    //Ignore blocks we already have
-                    if (blockchain.containsBlock(incoming.hash)) {
-                        out.writeObject(new Message("ACK", null));
-                        out.flush();
-                        break;
+                    if (isBanned(peerKey(host, hello.port))) {
+                        conn.close();
+                        return null;
                     }
 
-                    boolean added;
-                    try {
-                        //Full validation + UTXO application happens here
-                        added = blockchain.tryAddBlock(incoming);
-                    } catch (Exception e) {
-                        //Invalid block (bad tx, bad UTXO, etc.)
-                        out.writeObject(new Message("ACK", null));
-                        out.flush();
-                        break;
+                    //From now on this connection is how we talk to that peer.
+                    conn.setPeerPort(hello.port);
+                    conn.setCompression(hello.compression && NodeConfig.COMPRESSION);
+                    addPeer(host, hello.port);
+                    connections.put(peerKey(host, hello.port), conn);
+                    log.info("Added peer %s:%d", host, hello.port);
+
+                    return new Message("ACK", new Hello(port, NodeConfig.COMPRESSION));
+                case "GET_HEADERS":
+                    @SuppressWarnings("unchecked")
+                    List<String> locator = (List<String>) msg.data;
+                    return new Message("HEADERS", blockchain.getHeadersAfter(locator, ChainSync.MAX_HEADERS));
+                case "GET_PROOF":
+                    //Light clients ask for these without a HELLO, they are never added as peers.
+                    return new Message("PROOF", blockchain.proveTransaction((String) msg.data));
+                case "GET_BLOCKS":
+                    @SuppressWarnings("unchecked")
+                    List<String> hashes = (List<String>) msg.data;
+                    return new Message("BLOCKS", blockchain.getBlocks(hashes, ChainSync.MAX_BLOCKS));
+                case "INV":
+                    @SuppressWarnings("unchecked")
+                    List<InvItem> announced = (List<InvItem>) msg.data;
+
+                    ArrayList<InvItem> wanted = new ArrayList<>();
+                    for (InvItem item : announced) {
+                        conn.markKnown(item.hash);
+                        if (hasInventory(item) || !claimRequest(item.hash)) continue;
+
+                        //Blocks are fetched compact first, we most likely have their transactions already.
+                        wanted.add(item.type.equals(InvItem.BLOCK) ? new InvItem(InvItem.COMPACT_BLOCK, item.hash) : item);
                     }
 
-                    if (added) {
-                        System.out.println("Accepted block: " + incoming.index);
-
-                        //Remove confirmed txs from mempool
-                        mempool.removeAll(incoming.transactions);
-
-                        //Release mempool UTXO locks
-                        for (Transaction tx : incoming.transactions) {
-                            for (TransactionInput txIn : tx.inputs) {
-                                mempoolSpentUTXOs.remove(txIn.outputId);
-                            }
-                        }
-
-                        //Gossip block further
-                        broadcastBlock(incoming);
-
-                    } else {
-                        //Likely fork or we're behind → request chains
-                        for (Peer p : peers) {
-                            requestChainFromPeer(p.host, p.port);
+                    if (!wanted.isEmpty()) conn.send(new Message("GETDATA", wanted));
+                    return null;
+                case "GETDATA":
+                    @SuppressWarnings("unchecked")
+                    List<InvItem> requested = (List<InvItem>) msg.data;
+                    sendInventory(conn, requested);
+                    return null;
+                case "NEW_BLOCK":
+                    Block incoming = (Block) msg.data;
+                    conn.markKnown(incoming.hash);
+                    requestedInventory.remove(incoming.hash);
+
+                    acceptBlock(conn, incoming);
+                    return null;
+                case "CMPCT_BLOCK":
+                    receiveCompactBlock(conn, (CompactBlock) msg.data);
+                    return null;
+                case "GET_BLOCK_TXN":
+                    CompactBlock.MissingTxs missing = (CompactBlock.MissingTxs) msg.data;
+
+                    //The answer is positional, one tx per index asked for, so a single bad index gets nothing at all.
+                    ArrayList<Transaction> found = new ArrayList<>();
+                    for (Block block : blockchain.getBlocks(List.of(missing.blockHash), 1)) {
+                        for (int i : missing.indexes) {
+                            if (i < 0 || i >= block.transactions.size()) return new Message("BLOCK_TXN", new ArrayList<>());
+                            found.add(block.transactions.get(i));
                         }
                     }
-
-                    out.writeObject(new Message("ACK", null));
-                    out.flush();
-                    break;
+                    return new Message("BLOCK_TXN", found);
                 case "NEW_TX":
                     Transaction tx = (Transaction) msg.data;
+                    conn.markKnown(tx.txId);
+                    requestedInventory.remove(tx.txId);
 
-                    try {
-                        //Ignore duplicates early
-                        if (seenTransactions.contains(tx.txId)) {
-                            break;
-                        }
+                    //Ignore duplicates early, whether we accepted or rejected them last time
+                    if (seenTransactions.mightContain(tx.txId) || recentRejects.mightContain(rejectedKey(tx))) {
+                        return null;
+                    }
 
+                    try {
                         //Full validation and mempool locking
                         addTransactionToMempool(tx);
-
-                        //Mark as seen *after* successful acceptance
                         seenTransactions.add(tx.txId);
 
                         //Gossip further
                         broadcastTransaction(tx);
 
-                        System.out.println("Accepted transaction: " + tx.txId);
+                        txLog.debug("Accepted transaction: %s", tx.txId);
 
                     } catch (Exception e) {
-                        //Invalid tx ignore silently bc annoying
+                        //Invalid tx ignore silently bc annoying, but remember it so we don't validate it again
+                        recentRejects.add(rejectedKey(tx));
+
+                        //Double spends and the like happen to honest peers too, a broken tx doesn't
+                        if (isMalformed(tx)) misbehaving(conn, 10, "invalid transaction");
+                    }
+                    return null;
+                case "NEW_TX_BATCH":
+                    @SuppressWarnings("unchecked")
+                    List<Transaction> batch = (List<Transaction>) msg.data;
+
+                    List<Transaction> unseen = new ArrayList<>();
+                    for (Transaction batchTx : batch) {
+                        conn.markKnown(batchTx.txId);
+                        requestedInventory.remove(batchTx.txId);
+
+                        if (seenTransactions.mightContain(batchTx.txId)) continue;
+                        if (recentRejects.mightContain(rejectedKey(batchTx))) continue;
+                        unseen.add(batchTx);
+                    }
+
+                    List<Transaction> accepted = addTransactionsToMempool(unseen);
+                    Set<Transaction> acceptedSet = new HashSet<>(accepted);
+                    int malformed = 0;
+                    for (Transaction batchTx : unseen) {
+                        if (acceptedSet.contains(batchTx)) {
+                            seenTransactions.add(batchTx.txId);
+                        } else {
+                            recentRejects.add(rejectedKey(batchTx));
+                            if (isMalformed(batchTx)) malformed++;
+                        }
                     }
+                    if (malformed > 0) misbehaving(conn, 10 * malformed, malformed + " invalid transactions");
 
-                    out.writeObject(new Message("ACK", null));
-                    out.flush();
-                    break;
+                    if (!accepted.isEmpty()) {
+                        //Gossip the accepted part further, still as one batch
+                        broadcastTransactions(accepted);
+                        txLog.debug("Accepted %d batched transactions", accepted.size());
+                    }
+                    return null;
                 case "DISCONNECT":
                     int disconnectPeerPort = (Integer) msg.data;
-                    String disconnectHost = socket.getInetAddress().getHostAddress();
+                    String disconnectHost = conn.host;
 
+                    //Drop the peer first so closing the connection doesn't trigger a reconnect.
                     peers.removeIf(p -> p.host.equals(disconnectHost) && p.port == disconnectPeerPort);
-                    System.out.println("Peer disconnected " + disconnectHost + ":" + disconnectPeerPort);
-                    break;
+                    connections.remove(peerKey(disconnectHost, disconnectPeerPort), conn);
+                    conn.close();
+                    log.info("Peer disconnected %s:%d", disconnectHost, disconnectPeerPort);
+                    return null;
+                default:
+                    return null;
             }
-        } catch (SocketException e) {
-            //Peer disconnected abruptly normal
-        } catch (EOFException e) {
-            //Peer closed connection cleanly normal
         } catch (Exception e) {
             //Actual unexpected error
-            e.printStackTrace();
+            log.error("Handling %s from %s failed", msg.type, conn.describePeer(), e);
+            return null;
         }
     }
 
+    private void acceptBlock (PeerConnection conn, Block incoming) {
+        //Ignore blocks we already have
+        if (blockchain.containsBlock(incoming.hash)) {
+            return;
+        }
+
+        boolean added;
+        try {
+            //Full validation + UTXO application happens here
+            added = blockchain.tryAddBlock(incoming);
+        } catch (Exception e) {
+            //Not a verdict on the block, something went wrong while checking it, so the peer isn't to blame
+            log.warn("Could not check block %d from %s: %s", incoming.index, conn.describePeer(), e.toString());
+            return;
+        }
+
+        //It builds on our tip and a consensus rule turned it down, so it is invalid, not just from another branch.
+        if (!added && incoming.prevHash.equals(blockchain.getLatestBlock().hash)) {
+            misbehaving(conn, NodeConfig.BAN_SCORE, "invalid block " + incoming.index);
+            return;
+        }
+
+        if (added) {
+            log.info("Accepted block: %d", incoming.index);
+            listener.blockConnected(this, incoming);
+
+            //Remove confirmed and conflicting txs from mempool, everything else stays pending
+            mempool.removeForBlock(incoming);
+
+            //Gossip block further
+            broadcastBlock(incoming);
+
+        } else {
+            //Likely fork or we're behind → sync with whoever announced the best tip, in the background
+            syncCoordinator.trigger(conn.host, conn.getPeerPort(), incoming.index, incoming.hash);
+        }
+    }
+
+    //Rebuilds a compact block from our mempool, fetching the transactions we don't have from the same peer in one
+    //round trip. If that doesn't give us a block with the right hash, we ask for the full block instead.
+    private void receiveCompactBlock (PeerConnection conn, CompactBlock compact) throws IOException {
+        conn.markKnown(compact.hash);
+        if (blockchain.containsBlock(compact.hash)) {
+            requestedInventory.remove(compact.hash);
+            return;
+        }
+
+        //Doesn't connect to our chain, rebuilding it would only waste a round trip.
+        if (!blockchain.containsBlock(compact.prevHash)) {
+            requestedInventory.remove(compact.hash);
+            syncCoordinator.trigger(conn.host, conn.getPeerPort(), compact.index, compact.hash);
+            return;
+        }
+
+        Transaction[] txs = compact.match(mempool.getTransactions());
+
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < txs.length; i++) {
+            if (txs[i] == null) missing.add(i);
+        }
+
+        if (missing.isEmpty()) {
+            finishCompactBlock(conn, compact, txs);
+            return;
+        }
+
+        //Not waiting for the answer here: we are on the peer's ordered handler, and with enough peers relaying the same
+        //block at once every handler thread would sit on a GET_BLOCK_TXN while the answers queue up behind them.
+        conn.requestAsync(new Message("GET_BLOCK_TXN", new CompactBlock.MissingTxs(compact.hash, missing)))
+                .whenCompleteAsync((reply, error) -> {
+                    //No answer, or not one tx per gap, leaves the gaps, same as failing to rebuild
+                    if (reply != null && reply.data instanceof List && ((List<?>) reply.data).size() == missing.size()) {
+                        @SuppressWarnings("unchecked")
+                        List<Transaction> fetched = (List<Transaction>) reply.data;
+                        for (int i = 0; i < missing.size(); i++) {
+                            txs[missing.get(i)] = fetched.get(i);
+                        }
+                    }
+                    finishCompactBlock(conn, compact, txs);
+                }, handlers);
+    }
+
+    private void finishCompactBlock (PeerConnection conn, CompactBlock compact, Transaction[] txs) {
+        Block block = Arrays.asList(txs).contains(null) ? null : compact.toBlock(txs);
+
+        if (block == null) {
+            try {
+                conn.send(new Message("GETDATA", new ArrayList<>(List.of(new InvItem(InvItem.BLOCK, compact.hash)))));
+            } catch (IOException ignored) {} //Connection is gone, another peer will announce it
+            return;
+        }
+
+        requestedInventory.remove(compact.hash);
+        acceptBlock(conn, block);
+    }
+
+    //Whether we already have (or, for txs, already handled) what an INV announces.
+    private boolean hasInventory (InvItem item) {
+        if (item.type.equals(InvItem.BLOCK)) return blockchain.containsBlock(item.hash);
+        return mempool.contains(item.hash) || seenTransactions.mightContain(item.hash);
+    }
+
+    //True if we should ask for this hash now: nobody asked for it yet, or the last GETDATA for it went unanswered.
+    private boolean claimRequest (String hash) {
+        long now = System.currentTimeMillis();
+
+        Long asked = requestedInventory.putIfAbsent(hash, now);
+        if (asked == null) {
+            //Objects a peer announced and then never delivered would stay here forever, so sweep now and then.
+            if (requestedInventory.size() > NodeConfig.KNOWN_INVENTORY_CAPACITY) {
+                requestedInventory.values().removeIf(t -> now - t > NodeConfig.REQUEST_TIMEOUT_MS);
+            }
+            return true;
+        }
+        return now - asked > NodeConfig.REQUEST_TIMEOUT_MS && requestedInventory.replace(hash, asked, now);
+    }
+
+    //Answers a GETDATA with the objects we have, using the same messages plain gossip used to: pending transactions
+    //as one NEW_TX_BATCH, then every block as its own NEW_BLOCK (or CMPCT_BLOCK if asked for that) in chain order.
+    private void sendInventory (PeerConnection conn, List<InvItem> items) throws IOException {
+        ArrayList<Transaction> txs = new ArrayList<>();
+        List<String> blockHashes = new ArrayList<>();
+        Set<String> compact = new HashSet<>();
+
+        for (InvItem item : items) {
+            if (item.type.equals(InvItem.COMPACT_BLOCK)) {
+                blockHashes.add(item.hash);
+                compact.add(item.hash);
+            } else if (item.type.equals(InvItem.BLOCK)) {
+                blockHashes.add(item.hash);
+            } else {
+                Transaction tx = mempool.get(item.hash);
+                if (tx != null) txs.add(tx);
+            }
+        }
+
+        if (txs.size() == 1) {
+            conn.offer(new Message("NEW_TX", txs.get(0)));
+        } else if (!txs.isEmpty()) {
+            conn.offer(new Message("NEW_TX_BATCH", txs));
+        }
+
+        for (Block block : blockchain.getBlocks(blockHashes, ChainSync.MAX_BLOCKS)) {
+            if (compact.contains(block.hash) && !block.transactions.isEmpty()) {
+                conn.send(new Message("CMPCT_BLOCK", new CompactBlock(block)));
+            } else {
+                conn.send(new Message("NEW_BLOCK", block));
+            }
+        }
+    }
+
+    //True if a transaction is broken no matter what our chain looks like (bad signature, bad amounts, no inputs).
+    private boolean isMalformed (Transaction tx) {
+        try {
+            return tx.inputs.isEmpty() || !blockchain.checkStateless(tx);
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    //Adds misbehaviour points to a peer and bans it once it reaches BAN_SCORE: we hang up, forget it as a peer, and
+    //refuse its connections for BAN_DURATION_MS. Bans go by host and listening port, so other nodes on the same
+    //machine are not affected.
+    private void misbehaving (PeerConnection conn, int points, String reason) {
+        if (conn.getLimits().misbehaved(points) < NodeConfig.BAN_SCORE) return;
+
+        int peerPort = conn.getPeerPort();
+        String key = peerKey(conn.host, peerPort);
+        if (bannedUntil.put(key, System.currentTimeMillis() + NodeConfig.BAN_DURATION_MS) == null) {
+            log.warn("Banned peer %s (%s)", key, reason);
+        }
+
+        peers.removeIf(p -> p.host.equals(conn.host) && p.port == peerPort);
+        connections.remove(key, conn);
+        conn.close();
+    }
+
+    private boolean isBanned (String key) {
+        Long until = bannedUntil.get(key);
+        if (until == null) return false;
+
+        if (until < System.currentTimeMillis()) {
+            bannedUntil.remove(key, until);
+            return false;
+        }
+        return true;
+    }
+
+    //The txId does not cover the signature, so a rejected copy is remembered together with its signature. Otherwise anyone
+    //could get a real transaction ignored by first sending the same txId with a garbage signature.
+    private String rejectedKey (Transaction tx) {
+        String sig = tx.signature == null ? "" : HashUtil.sha256(tx.signature);
+        return tx.txId + ":" + sig;
+    }
+
     public void syncWithPeer (String host, int peerPort) {
         addPeer(host, peerPort);
 
-        //HELLO handshake, this node will introduce itself to the other node so they can add each other to their peer lists.
-        try (
-            Socket socket = new Socket(host, peerPort);
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream())
-        ) {
-            out.writeObject(new Message("HELLO", port));
-            out.flush();
-            in.readObject(); //ACK
+        //HELLO handshake happens as part of opening the connection, this node introduces itself to the other node so
+        //they can add each other to their peer lists.
+        try {
+            connectionTo(host, peerPort);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Could not connect to %s:%d: %s", host, peerPort, e.getMessage());
             return;
         }
 
@@ -305,41 +804,36 @@ public class Node {
         requestChainFromPeer(host, peerPort);
     }
 
-    //REQUEST_CHAIN this broadcasts to a node that it wants its chain, when the other node receives this message, it will
-    //return its own chain so we can compare. Then we may replace our own chain if it is shorter. This is a really simplistic
-    //way of finding the most "Up to date" chain, but it works for my project.
+    //Asks a peer what it has past our chain and catches up (or switches branch) if its chain is longer. We still go with
+    //whichever chain is longer, but only headers and the missing blocks travel, see ChainSync.
     public void requestChainFromPeer (String host, int port) {
-        try (
-            Socket socket = new Socket(host, port);
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream())
-        ) {
-            out.writeObject(new Message("REQUEST_CHAIN", null));
-            out.flush();
-
-            Message response = (Message) in.readObject();
-            Blockchain peerChain = (Blockchain) response.data;
-
-            if (blockchain.maybeReplaceChain(peerChain.getChain())) {
-                System.out.println("Chain reorganized");
-
-                //Reset local transaction state.
-                mempool.clear();
-                mempoolSpentUTXOs.clear();
-                seenTransactions.clear();
-
-                //Persist new canonical chain.
-                blockchain.saveToDisk("blockchain_" + this.port + ".dat");
-            }
+        try {
+            chainSync.syncWith(host, port);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Chain request to %s:%d failed: %s", host, port, e.getMessage());
         }
     }
 
     //Mines a new block using the current mempool contents. A coinbase transaction is always created to reward this node for mining,
     //and any pending transactions in the mempool are included if present. The block is mined locally by performing proof-of-work, then validated
-    //and added to the blockchain. If accepted, the mempool and related locks are cleared and the new block is broadcast to peers.
+    //and added to the blockchain. If accepted, the mined txs are dropped from the mempool and the new block is broadcast to peers.
+    //Only one mining round runs at a time; a second call while one is running just returns. cancelMining() ends the
+    //running round without a block.
     public void mineFromMempool() throws Exception {
+        if (!mining.compareAndSet(false, true)) {
+            log.warn("Already mining block %d", miningHeight);
+            return;
+        }
+
+        try {
+            mineRound();
+        } finally {
+            miningHeight = -1;
+            mining.set(false);
+        }
+    }
+
+    private void mineRound () throws Exception {
         ArrayList<Transaction> txs = new ArrayList<>();
 
         // Add coinbase tx always
@@ -349,78 +843,242 @@ public class Node {
         txs.add(coinbase);
 
         // Add mempool txs (if any)
-        txs.addAll(mempool);
+        txs.addAll(mempool.getTransactions());
 
         Block prev = blockchain.getLatestBlock();
         Block block = new Block(prev.index + 1, prev.hash);
         block.transactions = txs;
-        block.hash = block.computeHash();
 
-        while (!block.hash.startsWith("0".repeat(5))) {
+        //Only the nonce changes between attempts, so the txId string is built once instead of once per hash.
+        StringBuilder txData = new StringBuilder();
+        for (Transaction tx : txs) {
+            txData.append(tx.txId);
+        }
+        String data = txData.toString();
+        String target = Blockchain.target();
+
+        FlightEvents.MiningRound event = new FlightEvents.MiningRound();
+        event.begin();
+
+        long start = System.nanoTime();
+        miningCancelled = false;
+        miningHashes = 0;
+        miningStart = start;
+        miningHeight = block.index;
+
+        long hashes = 1;
+        block.hash = Block.computeHash(block.index, block.prevHash, block.timestamp, data, block.nonce);
+        while (!block.hash.startsWith(target)) {
             block.nonce++;
-            block.hash = block.computeHash();
+            block.hash = Block.computeHash(block.index, block.prevHash, block.timestamp, data, block.nonce);
+            hashes++;
+
+            if (hashes % MINING_CHECK_INTERVAL == 0) {
+                miningHashes = hashes;
+                if (miningCancelled) break;
+            }
         }
 
-        if (!blockchain.tryAddBlock(block)) return;
+        long elapsed = System.nanoTime() - start;
+        metrics.counter("chint_hashes_total").add(hashes);
+        hashrate = hashes / Math.max(elapsed / 1e9, 1e-9);
 
-        blockchain.saveToDisk("blockchain_" + port + ".dat");
+        event.height = block.index;
+        event.txCount = txs.size();
+        event.hashes = hashes;
+
+        if (!block.hash.startsWith(target)) {
+            event.outcome = "cancelled";
+            event.commit();
+            log.info("Mining block %d cancelled after %d hashes", block.index, hashes);
+            return;
+        }
+        metrics.histogram("chint_block_mining_seconds").record(elapsed);
 
-        mempool.clear();
-        mempoolSpentUTXOs.clear();
-        seenTransactions.clear();
+        boolean added = blockchain.tryAddBlock(block);
+
+        event.outcome = added ? "mined" : "stale";
+        event.commit();
+
+        if (!added) return;
+        listener.blockConnected(this, block);
+
+        saveChain();
+
+        mempool.removeForBlock(block);
 
         broadcastBlock(block);
-        System.out.println("Mined block " + block.index);
+        log.info("Mined block %d", block.index);
     }
 
-    //For all the peers in our network we broadcast a given block for them to check and then possibly add to their chain.
+    //Asks the running mining round (if any) to stop; it notices within MINING_CHECK_INTERVAL hashes.
+    public void cancelMining () {
+        if (mining.get()) miningCancelled = true;
+    }
+
+    //For all the peers in our network we announce a given block, peers that don't have it yet will ask for it and then
+    //possibly add it to their chain.
     public void broadcastBlock (Block block) {
-        for (Peer peer : new ArrayList<>(peers)) {
-            try (
-                Socket socket = new Socket(peer.host, peer.port);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())
-            ) {
-                out.writeObject(new Message("NEW_BLOCK", block));
-                out.flush();
-                in.readObject(); //ACK
-            } catch (ConnectException | SocketTimeoutException e) {
-                removePeer(peer); //Peer truly unreachable
-            } catch (EOFException | SocketException e) {
-                //Peer closed early normal
-            } catch (Exception e) {
-                //Unexpected error
-                e.printStackTrace();
+        announce(List.of(new InvItem(InvItem.BLOCK, block.hash)));
+    }
+
+    //Similar to broadcasting blocks. Each time we make (or accept) a new transaction we have to announce it to all of our
+    //peers. Unlike blocks, transactions are not urgent: they wait a few milliseconds for others to share the INV with.
+    public void broadcastTransaction (Transaction tx) {
+        txRelay.add(new InvItem(InvItem.TX, tx.txId));
+    }
+
+    //A whole batch of transactions is announced as one INV per peer instead of one per transaction.
+    public void broadcastTransactions (List<Transaction> txs) {
+        List<InvItem> items = new ArrayList<>();
+        for (Transaction tx : txs) {
+            items.add(new InvItem(InvItem.TX, tx.txId));
+        }
+        txRelay.addAll(items);
+    }
+
+    //Sends every peer an INV with the hashes it doesn't know about yet; the peer we got an object from, or one that
+    //already announced it to us, gets nothing. This only queues frames on each peer's own bounded send queue, so one
+    //slow peer never holds up the others (or the handler that called us). Tx-only INVs may be dropped for a peer that
+    //is behind, block INVs never are. A peer without an open connection is reconnected in the background instead of
+    //being dialed here.
+    private void announce (List<InvItem> items) {
+        if (items.isEmpty()) return;
+        long start = System.nanoTime();
+
+        boolean droppable = true;
+        for (InvItem item : items) {
+            if (!item.type.equals(InvItem.TX)) droppable = false;
+        }
+
+        for (Peer peer : peers) {
+            PeerConnection conn = connections.get(peerKey(peer.host, peer.port));
+            if (conn == null || !conn.isOpen()) {
+                scheduleReconnect(peer, 1);
+                continue;
+            }
+
+            ArrayList<InvItem> unknown = new ArrayList<>();
+            for (InvItem item : items) {
+                if (!conn.knows(item.hash)) unknown.add(item);
+            }
+            if (unknown.isEmpty()) continue;
+
+            try {
+                Message inv = new Message("INV", unknown);
+                if (droppable) {
+                    if (!conn.offer(inv)) continue; //Dropped, so the peer still doesn't know these
+                } else {
+                    conn.send(inv);
+                }
+
+                for (InvItem item : unknown) {
+                    conn.markKnown(item.hash);
+                }
+                metrics.counter("chint_inv_sent_total").increment();
+            } catch (IOException e) {
+                scheduleReconnect(peer, 1);
             }
         }
+        metrics.histogram("chint_announce_seconds").recordSince(start);
     }
 
-    //Similar to broadcasting blocks. Each time we make a new transaction we have to broadcast it to all of our peers.
-    public void broadcastTransaction (Transaction tx) {
-        for (Peer peer : new ArrayList<>(peers)) {
-            try (
-                Socket socket = new Socket(peer.host, peer.port);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())
-            ) {
-                out.writeObject(new Message("NEW_TX", tx));
-                out.flush();
-                in.readObject(); // ACK
-            } catch (ConnectException | SocketTimeoutException e) {
-                removePeer(peer); //Peer truly unreachable
-            } catch (EOFException | SocketException e) {
-                //Peer closed early normal
+    //Returns our open connection to a peer, dialing it and saying HELLO if there is none yet (or the old one broke).
+    PeerConnection connectionTo (String host, int peerPort) throws Exception {
+        String key = peerKey(host, peerPort);
+        if (isBanned(key)) throw new IOException(key + " is banned");
+
+        PeerConnection conn = connections.get(key);
+        if (conn != null && conn.isOpen()) return conn;
+
+        //Only one thread dials a given peer, the others wait and then reuse its connection.
+        synchronized (dialLocks.computeIfAbsent(key, k -> new Object())) {
+            conn = connections.get(key);
+            if (conn != null && conn.isOpen()) return conn;
+
+            conn = network.connect(host, peerPort);
+            try {
+                conn.awaitConnected();
+                Message ack = conn.request(new Message("HELLO", new Hello(port, NodeConfig.COMPRESSION)));
+                if (ack.data instanceof Hello) {
+                    conn.setCompression(((Hello) ack.data).compression && NodeConfig.COMPRESSION);
+                }
             } catch (Exception e) {
-                //Unexpected error
-                e.printStackTrace();
+                conn.close();
+                throw e;
+            }
+
+            connections.put(key, conn);
+            return conn;
+        }
+    }
+
+    //Connections a sync can download blocks over: the peer we got the headers from first, then every other open one.
+    List<PeerConnection> syncSources (PeerConnection first) {
+        List<PeerConnection> sources = new ArrayList<>();
+        sources.add(first);
+
+        for (PeerConnection conn : connections.values()) {
+            if (conn.isOpen() && !sources.contains(conn)) sources.add(conn);
+        }
+        return sources;
+    }
+
+    //Called by a connection once it is closed. If it was the one we use for a peer that is still on our list, the
+    //peer went away unexpectedly, so we try to get it back.
+    public void connectionClosed (PeerConnection conn) {
+        if (conn.getPeerPort() < 0 || shuttingDown) return;
+
+        for (Peer peer : peers) {
+            if (peer.port != conn.getPeerPort()) continue;
+
+            if (connections.remove(peerKey(peer.host, peer.port), conn)) {
+                scheduleReconnect(peer, 1);
             }
         }
     }
 
+    //Retries a lost peer with doubling delays, and gives up on it (removes it) after RECONNECT_ATTEMPTS tries.
+    private void scheduleReconnect (Peer peer, int attempt) {
+        String key = peerKey(peer.host, peer.port);
+        if (attempt == 1 && !reconnecting.add(key)) return; //Already being retried
+
+        long delay = NodeConfig.RECONNECT_BASE_DELAY_MS << Math.min(attempt - 1, 10);
+        reconnector.schedule(() -> {
+            if (shuttingDown || !peers.contains(peer)) {
+                reconnecting.remove(key);
+                return;
+            }
+
+            try {
+                connectionTo(peer.host, peer.port);
+                reconnecting.remove(key);
+            } catch (Exception e) {
+                if (attempt < NodeConfig.RECONNECT_ATTEMPTS) {
+                    scheduleReconnect(peer, attempt + 1);
+                } else {
+                    reconnecting.remove(key);
+                    removePeer(peer); //Peer truly unreachable
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    void saveChain () {
+        long start = System.nanoTime();
+        blockchain.saveToDisk("blockchain_" + port + ".dat");
+        if (txIndex != null) txIndex.saveToDisk("txindex_" + port + ".dat");
+        metrics.histogram("chint_chain_save_seconds").recordSince(start);
+    }
+
+    private static String peerKey (String host, int port) {
+        return host + ":" + port;
+    }
+
     //When a peer disconnects, we must remove them from our peer list
     private synchronized void removePeer (Peer peer) {
         peers.remove(peer);
-        //System.out.println("Removed peer " + peer.host + ":" + peer.port); Annoying, save for debugging.
+        log.debug("Removed peer %s:%d", peer.host, peer.port);
     }
 
     //These methods below are "Getters" and print statements for the CLI.
@@ -432,8 +1090,66 @@ public class Node {
         return blockchain;
     }
 
+    public int getPort () {
+        return port;
+    }
+
+    public void setListener (NodeListener listener) {
+        this.listener = listener == null ? NodeListener.NONE : listener;
+    }
+
+    NodeListener getListener () {
+        return listener;
+    }
+
+    public boolean isMining () {
+        return mining.get();
+    }
+
+    //Height of the block being mined, or -1 when not mining.
+    public int getMiningHeight () {
+        return miningHeight;
+    }
+
+    //Nonces tried so far in the current round.
+    public long getMiningHashes () {
+        return miningHashes;
+    }
+
+    //Hashes per second of the current round while mining, of the last round otherwise.
+    public double getHashrate () {
+        if (!mining.get()) return hashrate;
+        double seconds = (System.nanoTime() - miningStart) / 1e9;
+        return seconds <= 0 ? 0 : miningHashes / seconds;
+    }
+
+    //Hashes a round needs on average at the current difficulty, 16 per leading zero hex digit.
+    public long getExpectedHashes () {
+        return 1L << (4 * Blockchain.target().length());
+    }
+
+    public int getMempoolSize () {
+        return mempool.size();
+    }
+
+    public int getPeerCount () {
+        return peers.size();
+    }
+
     public long getBalance() {
-        return blockchain.getBalance(publicKey);
+        return wallet.getConfirmedBalance();
+    }
+
+    //The balance once our pending transactions (and pending payments to us) are mined.
+    public long getUnconfirmedBalance () {
+        return wallet.getUnconfirmedBalance();
+    }
+
+    public void printWallet () {
+        System.out.println("Confirmed balance:   " + wallet.getConfirmedBalance());
+        System.out.println("Unconfirmed balance: " + wallet.getUnconfirmedBalance());
+        System.out.println("Coins: " + wallet.coinCount() + " (" + wallet.spendable().size() + " spendable), "
+                + wallet.pendingCount() + " pending transaction(s), coin selection " + NodeConfig.COIN_SELECTION);
     }
 
     public void printPeers () {
@@ -443,18 +1159,56 @@ public class Node {
         }
 
         for (Peer p : peers) {
-            System.out.println(p.host + ":" + p.port);
+            PeerConnection conn = connections.get(peerKey(p.host, p.port));
+            long dropped = conn == null ? 0 : conn.getDroppedFrames();
+            int score = conn == null ? 0 : conn.getLimits().getScore();
+
+            System.out.println(p.host + ":" + p.port
+                    + (dropped > 0 ? " (" + dropped + " gossip messages dropped)" : "")
+                    + (score > 0 ? " (misbehaviour " + score + "/" + NodeConfig.BAN_SCORE + ")" : ""));
         }
     }
 
+    //Looks a transaction up by txId: on our chain through the tx index, otherwise in the mempool.
+    public void printTransaction (String txId) {
+        if (blockchain.printTransaction(txId)) return;
+
+        Transaction pending = mempool.get(txId);
+        if (pending != null) {
+            System.out.println(pending + " is pending in the mempool");
+        } else if (txIndex == null) {
+            System.out.println("Not in the mempool, and the tx index is off (-Dchint.txIndex=false)");
+        } else {
+            System.out.println("Unknown transaction " + txId);
+        }
+    }
+
+    //Received and spent outputs of a key, ours if owner is null.
+    public void printHistory (PublicKey owner) {
+        blockchain.printHistory(owner == null ? publicKey : owner);
+    }
+
     public void printMempool() {
         if (mempool.isEmpty()) {
             System.out.println("(mempool empty)");
-            return;
         }
-        for (Transaction tx : mempool) {
+        for (Transaction tx : mempool.getTransactions()) {
             System.out.println(tx.txId);
         }
+        System.out.println(seenTransactions.describe());
+        System.out.println("Recent rejects: " + recentRejects.size() + " entries");
+    }
+
+    public void printStats () {
+        System.out.print(metrics.describe());
+    }
+
+    public void printTraffic () {
+        System.out.print(trafficStats.describe());
+    }
+
+    TrafficStats getTrafficStats () {
+        return trafficStats;
     }
 
     public void printUTXO() {
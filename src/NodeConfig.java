@@ -0,0 +1,101 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Tunable node settings. Every value has a sane default and can be overridden with a -D system property
+ * when starting the node, for example: java -Dchint.seenHorizonMs=300000 Main 5000
+*/
+public class NodeConfig {
+    //How long (at least) a txId stays in the seen-transaction filter.
+    public static final long SEEN_HORIZON_MS = Long.getLong("chint.seenHorizonMs", 10 * 60 * 1000L);
+
+    //How many txIds the seen filter is sized for within one horizon, and the false positive rate it aims for.
+    public static final int SEEN_CAPACITY = Integer.getInteger("chint.seenCapacity", 100_000);
+    public static final double SEEN_FP_RATE = doubleProperty("chint.seenFpRate", 0.000001);
+
+    //Most payment outputs a single batch payout transaction may carry (change output not included).
+    public static final int BATCH_MAX_OUTPUTS = Integer.getInteger("chint.batchMaxOutputs", 100);
+
+    //Peer connections: how long to wait for a dial and for a request's answer, and the largest frame we accept.
+    public static final int CONNECT_TIMEOUT_MS = Integer.getInteger("chint.connectTimeoutMs", 5000);
+    public static final long REQUEST_TIMEOUT_MS = Long.getLong("chint.requestTimeoutMs", 30_000L);
+    public static final int MAX_FRAME_BYTES = Integer.getInteger("chint.maxFrameBytes", 64 * 1024 * 1024);
+
+    //How often we try to bring a broken peer connection back (with doubling delays) before dropping the peer.
+    public static final int RECONNECT_ATTEMPTS = Integer.getInteger("chint.reconnectAttempts", 5);
+    public static final long RECONNECT_BASE_DELAY_MS = Long.getLong("chint.reconnectDelayMs", 1000L);
+
+    //Network loop limits: how many peer connections we keep at once, how many threads run message handlers, and how
+    //long a connection may stay silent (we PING well before that) before we hang up on it.
+    public static final int MAX_CONNECTIONS = Integer.getInteger("chint.maxConnections", 256);
+    public static final int HANDLER_THREADS = Integer.getInteger("chint.handlerThreads", Runtime.getRuntime().availableProcessors() * 2);
+    public static final int REPLY_THREADS = Integer.getInteger("chint.replyThreads", 2);
+    public static final long IDLE_TIMEOUT_MS = Long.getLong("chint.idleTimeoutMs", 90_000L);
+
+    //Outbound queue per peer: tx gossip is dropped once this many bytes are waiting, and a peer that takes none of its
+    //queued data for SEND_TIMEOUT_MS is disconnected (and reconnected later).
+    public static final int SEND_QUEUE_BYTES = Integer.getInteger("chint.sendQueueBytes", 4 * 1024 * 1024);
+    public static final long SEND_TIMEOUT_MS = Long.getLong("chint.sendTimeoutMs", 20_000L);
+
+    //Frame compression: offered in our Hello unless turned off, and only used for payloads of at least this many bytes.
+    public static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("chint.compression", "true"));
+    public static final int COMPRESS_MIN_BYTES = Integer.getInteger("chint.compressMinBytes", 1024);
+
+    //Per peer limits on what it may send us (per second; short bursts of a few times that are fine), the misbehaviour
+    //score at which we ban it and for how long, and how many of its messages may wait for a handler before we stop
+    //reading from it.
+    public static final double MESSAGE_RATE = doubleProperty("chint.messageRate", 1000);
+    public static final double TX_RATE = doubleProperty("chint.txRate", 1000);
+    public static final double BLOCK_RATE = doubleProperty("chint.blockRate", 1);
+    public static final int BAN_SCORE = Integer.getInteger("chint.banScore", 100);
+    public static final long BAN_DURATION_MS = Long.getLong("chint.banDurationMs", 60 * 60 * 1000L);
+    public static final int MAX_PEER_BACKLOG = Integer.getInteger("chint.maxPeerBacklog", 256);
+
+    //Tx relay batching: announcements wait at most this long, or until this many are collected, and then go out as one INV.
+    public static final long TX_RELAY_WINDOW_MS = Long.getLong("chint.txRelayWindowMs", 5L);
+    public static final int TX_RELAY_MAX_ITEMS = Integer.getInteger("chint.txRelayMaxItems", 1000);
+
+    //Log level for every subsystem (off, error, warn, info, debug, trace); one subsystem can differ with
+    //-Dchint.logLevel.<subsystem>=<level>, e.g. -Dchint.logLevel.tx=debug. And how many log records may wait for the
+    //console before new ones are dropped.
+    public static final String LOG_LEVEL = System.getProperty("chint.logLevel", "info");
+    public static final int LOG_BUFFER = Integer.getInteger("chint.logBuffer", 8192);
+
+    //How the wallet picks coins for a payment (bnb, largest, smallest), see CoinSelection.
+    public static final String COIN_SELECTION = System.getProperty("chint.coinSelection", "bnb");
+
+    //Consolidation: while the mempool is empty and nothing of ours is pending, merge our smallest coins into one once
+    //we hold at least CONSOLIDATE_MIN_COINS of them, at most CONSOLIDATE_MAX_INPUTS at a time. Checked every
+    //CONSOLIDATE_INTERVAL_MS; 0 (the default) leaves it to the consolidate command.
+    public static final long CONSOLIDATE_INTERVAL_MS = Long.getLong("chint.consolidateIntervalMs", 0L);
+    public static final int CONSOLIDATE_MIN_COINS = Integer.getInteger("chint.consolidateMinCoins", 50);
+    public static final int CONSOLIDATE_MAX_INPUTS = Integer.getInteger("chint.consolidateMaxInputs", 100);
+
+    //Keep the txId and address history indexes (txindex_<port>.dat) for the tx and history commands.
+    public static final boolean TX_INDEX = Boolean.parseBoolean(System.getProperty("chint.txIndex", "true"));
+
+    //The localhost metrics endpoint listens on the node's port plus this offset; 0 turns it off.
+    public static final int METRICS_PORT_OFFSET = Integer.getInteger("chint.metricsPortOffset", 1000);
+
+    //How many block bodies we ask a peer for per GET_BLOCKS during sync (capped at ChainSync.MAX_BLOCKS).
+    public static final int SYNC_BLOCK_BATCH = Integer.getInteger("chint.syncBlockBatch", 100);
+
+    //Per peer, how many inventory hashes (tx and block) we remember it already has, so we never announce them to it.
+    public static final int KNOWN_INVENTORY_CAPACITY = Integer.getInteger("chint.knownInventoryCapacity", 5000);
+
+    //Parallel block download: how many batches may be downloaded ahead of the one being validated, and how long a peer
+    //may take for a batch before it is given to another peer.
+    public static final int SYNC_WINDOW = Integer.getInteger("chint.syncWindow", 16);
+    public static final long SYNC_STALL_MS = Long.getLong("chint.syncStallMs", 10_000L);
+
+    private static double doubleProperty (String name, double fallback) {
+        String value = System.getProperty(name);
+        if (value == null) return fallback;
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring bad value for " + name + ": " + value);
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Callbacks for what happens inside a node, for tools that watch nodes running in the same JVM (see Simulator).
+ * They run on whichever thread made the change, so they must be quick and must not call back into the node.
+*/
+public interface NodeListener {
+    NodeListener NONE = new NodeListener() {};
+
+    //A block became part of our chain: mined here, received from a peer, downloaded by sync or switched to in a reorg.
+    default void blockConnected (Node node, Block block) {}
+
+    //A transaction was admitted to our mempool, made here or received from a peer.
+    default void transactionAccepted (Node node, Transaction tx) {}
+
+    //We switched to another branch. Its blocks were already reported through blockConnected.
+    default void chainReorganized (Node node, ChainReorg reorg) {}
+}
@@ -0,0 +1,64 @@
+/*
+ * Gavin MacFadyen
+ *
+ * One (recipient, amount) pair of a batch payout. Batches are usually read from a file with one payment per line:
+ *     <recipientPubKeyBase64> <amount>
+ * Blank lines and lines starting with # are skipped.
+*/
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+public class Payment {
+    public final PublicKey recipient;
+    public final long amount;
+
+    public Payment (PublicKey recipient, long amount) {
+        this.recipient = recipient;
+        this.amount = amount;
+    }
+
+    public static List<Payment> readFile (Path file) throws Exception {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file);
+        } catch (IOException e) {
+            throw new Exception("Cannot read " + file + ": " + e.getMessage());
+        }
+
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        List<Payment> payments = new ArrayList<>();
+
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] parts = line.split("\\s+");
+            if (parts.length != 2) {
+                throw new Exception("Line " + (i + 1) + ": expected <pubKey> <amount>");
+            }
+
+            try {
+                PublicKey recipient = keyFactory.generatePublic(
+                        new X509EncodedKeySpec(Base64.getDecoder().decode(parts[0]))
+                );
+                long amount = Long.parseLong(parts[1]);
+                if (amount <= 0) {
+                    throw new Exception("amount must be positive");
+                }
+
+                payments.add(new Payment(recipient, amount));
+            } catch (Exception e) {
+                throw new Exception("Line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+
+        return payments;
+    }
+}
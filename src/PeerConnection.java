@@ -0,0 +1,634 @@
+/*
+ * Gavin MacFadyen
+ *
+ * One long-lived connection to a peer. Instead of a new socket per message, both nodes keep this connection open
+ * after HELLO and exchange length-prefixed frames over it:
+ *
+ *     [int length][long requestId][byte flags][payload = serialized Message]
+ *
+ * where length counts everything after itself. Requests carry a fresh requestId and the answer comes back with the
+ * same id, so several requests can be in flight at once (pipelining) and responses may arrive in any order.
+ * One-way messages (gossip) use requestId 0 and are handled strictly in the order they were sent.
+ *
+ * If both nodes said so in their Hello, payloads of COMPRESS_MIN_BYTES or more are deflated (flag COMPRESSED) when
+ * that actually makes them smaller. Small messages always go out as they are.
+ *
+ * All socket I/O happens on the NetworkLoop thread: sending only queues a frame, and the loop feeds us bytes
+ * as they arrive. Decoded messages are handled on the node's handler pool.
+*/
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class PeerConnection {
+    private static final Log log = Log.get("net");
+
+    //Package-private for LightClient, which speaks the same framing over a plain socket.
+    static final byte FLAG_RESPONSE = 1;
+    static final byte FLAG_EXPECTS_RESPONSE = 2;
+    static final byte FLAG_COMPRESSED = 4;
+
+    static final int HEADER_BYTES = 8 + 1; //requestId + flags
+
+    private static final Message KEEP_ALIVE = new Message("PING", null);
+
+    private final SocketChannel channel;
+    private final NetworkLoop loop;
+    private final Node node;
+    private final ExecutorService handlers;
+    private final ExecutorService replyDecoders;
+    private SelectionKey key;
+
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final Map<Long, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+    private final TrafficStats stats;
+    private final PeerLimits limits = new PeerLimits();
+
+    //Messages from this peer queued for or running in a handler, and whether we stopped reading because of it.
+    private final AtomicInteger backlog = new AtomicInteger();
+    private volatile boolean readPaused = false; //Written on the loop thread, taskDone reads it on handler threads
+    private volatile boolean compressOutgoing = false; //Set once the peer's Hello says it can inflate
+
+    //Read side, only touched by the loop thread. Small frames are cut straight out of readBuffer, a frame that
+    //doesn't fit gets its own buffer until it is complete.
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer largeFrame;
+
+    //Encoded frames waiting for the socket to take them. The queue is bounded in bytes: once a slow peer has
+    //SEND_QUEUE_BYTES waiting, droppable frames (tx gossip) are refused or evicted so blocks and answers still fit.
+    private final ArrayDeque<OutFrame> writeQueue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private long droppedFrames = 0;
+    private volatile long lastWriteProgress = System.currentTimeMillis();
+    private boolean closeWhenFlushed = false;
+
+    //One-way messages from this peer, run one at a time on the shared handler pool to keep their order.
+    private final ArrayDeque<Runnable> ordered = new ArrayDeque<>();
+    private boolean orderedRunning = false;
+
+    public final String host;
+    private volatile int peerPort = -1; //The peer's listening port, known once HELLO went through.
+
+    //Tx and block hashes this peer has, because it announced or sent them to us or we announced them to it.
+    private final RollingBloomFilter knownInventory = new RollingBloomFilter(
+            NodeConfig.KNOWN_INVENTORY_CAPACITY, NodeConfig.SEEN_FP_RATE, NodeConfig.SEEN_HORIZON_MS
+    );
+
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final long createdAt = System.currentTimeMillis();
+    private volatile long lastReceived = createdAt;
+    private volatile long lastSent = createdAt;
+
+    PeerConnection (SocketChannel channel, String host, NetworkLoop loop, Node node, ExecutorService handlers,
+                    ExecutorService replyDecoders) {
+        this.channel = channel;
+        this.host = host;
+        this.loop = loop;
+        this.node = node;
+        this.handlers = handlers;
+        this.replyDecoders = replyDecoders;
+        this.stats = node.getTrafficStats();
+    }
+
+    //Loop thread: attach to the selector.
+    void register (Selector selector, int ops) throws ClosedChannelException {
+        key = channel.register(selector, ops, this);
+    }
+
+    //Loop thread: an outbound connect finished (or failed).
+    void onConnectable () throws IOException {
+        try {
+            channel.finishConnect();
+        } catch (IOException e) {
+            connected.completeExceptionally(e);
+            throw e;
+        }
+        onConnected();
+    }
+
+    void onConnected () throws IOException {
+        channel.socket().setTcpNoDelay(true);
+        lastReceived = System.currentTimeMillis();
+
+        synchronized (writeQueue) {
+            key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        connected.complete(null);
+    }
+
+    //Waits until an outbound connect is through. Throws if it failed or took too long.
+    public void awaitConnected () throws Exception {
+        try {
+            connected.get(NodeConfig.CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            close();
+            throw new IOException("Connect to " + host + " failed: " + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            close();
+            throw new IOException("Connect to " + host + " timed out");
+        }
+    }
+
+    //Fire and forget, nothing comes back.
+    public void send (Message msg) throws IOException {
+        enqueue(encode(0, (byte) 0, msg), false);
+    }
+
+    //Like send, but for gossip we can afford to lose: if the peer isn't keeping up, the message is dropped instead of
+    //growing its queue. Returns false if it was dropped.
+    public boolean offer (Message msg) throws IOException {
+        return enqueue(encode(0, (byte) 0, msg), true);
+    }
+
+    //Sends a request and waits for the peer's answer to it. Other traffic keeps flowing on the connection meanwhile.
+    public Message request (Message msg) throws Exception {
+        try {
+            return requestAsync(msg).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) throw (TimeoutException) e.getCause();
+            throw new IOException("Connection to " + host + " lost", e.getCause());
+        }
+    }
+
+    //Same as request without waiting: the future completes with the answer (decoded on a reply decoder), or fails if
+    //the connection closes or no answer came within REQUEST_TIMEOUT_MS.
+    public CompletableFuture<Message> requestAsync (Message msg) throws IOException {
+        long id = nextRequestId.getAndIncrement();
+        CompletableFuture<Message> response = new CompletableFuture<>();
+        pending.put(id, response);
+
+        try {
+            enqueue(encode(id, FLAG_EXPECTS_RESPONSE, msg), false);
+        } catch (IOException e) {
+            pending.remove(id);
+            throw e;
+        }
+
+        return response
+                .orTimeout(NodeConfig.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((reply, error) -> pending.remove(id));
+    }
+
+    void sendKeepAlive () {
+        try {
+            offer(KEEP_ALIVE); //A peer with a backlog doesn't need a ping on top of it
+        } catch (IOException ignored) {}
+    }
+
+    private ByteBuffer encode (long requestId, byte flags, Message msg) {
+        FlightEvents.MessageSent event = new FlightEvents.MessageSent();
+        event.begin();
+
+        byte[] raw = SerializationUtil.serialize(msg);
+        byte[] payload = raw;
+
+        if (compressOutgoing && raw.length >= NodeConfig.COMPRESS_MIN_BYTES) {
+            byte[] deflated = deflate(raw);
+            if (deflated.length < raw.length) {
+                payload = deflated;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        stats.recordSent(msg.type, raw.length, payload.length);
+
+        if (event.shouldCommit()) {
+            event.type = msg.type;
+            event.peer = describePeer();
+            event.bytes = raw.length;
+            event.wireBytes = payload.length;
+            event.commit();
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_BYTES + payload.length);
+        frame.putInt(HEADER_BYTES + payload.length);
+        frame.putLong(requestId);
+        frame.put(flags);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    private boolean enqueue (ByteBuffer frame, boolean droppable) throws IOException {
+        if (closed.get()) throw new IOException("Connection to " + host + " is closed");
+
+        boolean wasEmpty;
+        synchronized (writeQueue) {
+            if (queuedBytes + frame.remaining() > NodeConfig.SEND_QUEUE_BYTES) {
+                long before = droppedFrames;
+                if (droppable) {
+                    droppedFrames++;
+                } else {
+                    evictDroppable(); //Make room for the important frame, it goes in even if that isn't enough
+                }
+
+                FlightEvents.SendQueueFull event = new FlightEvents.SendQueueFull();
+                if (event.shouldCommit()) {
+                    event.peer = describePeer();
+                    event.queuedBytes = queuedBytes;
+                    event.dropped = (int) (droppedFrames - before);
+                    event.commit();
+                }
+                if (droppable) return false;
+            }
+
+            wasEmpty = writeQueue.isEmpty();
+            if (wasEmpty) lastWriteProgress = System.currentTimeMillis();
+
+            writeQueue.add(new OutFrame(frame, droppable));
+            queuedBytes += frame.remaining();
+        }
+
+        //Only the first frame needs to ask the loop for write interest, it stays on until the queue drains.
+        if (wasEmpty) loop.runOnLoop(this::enableWrites);
+        return true;
+    }
+
+    //Throws out queued gossip frames, except the head which may already be half written. Caller holds writeQueue.
+    private void evictDroppable () {
+        Iterator<OutFrame> it = writeQueue.iterator();
+        if (it.hasNext()) it.next();
+
+        while (it.hasNext()) {
+            OutFrame queued = it.next();
+            if (!queued.droppable) continue;
+
+            it.remove();
+            queuedBytes -= queued.buffer.remaining();
+            droppedFrames++;
+        }
+    }
+
+    private void enableWrites () {
+        if (closed.get() || !isConnected() || !key.isValid()) return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    //Loop thread: push as much of the queue into the socket as it takes without blocking.
+    void onWritable () throws IOException {
+        synchronized (writeQueue) {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer frame = writeQueue.peek().buffer;
+                int written = channel.write(frame);
+                if (written > 0) {
+                    queuedBytes -= written;
+                    lastWriteProgress = System.currentTimeMillis();
+                }
+                if (frame.hasRemaining()) return; //Socket buffer full, wait for the next OP_WRITE
+
+                writeQueue.poll();
+                lastSent = System.currentTimeMillis();
+            }
+
+            key.interestOps(readPaused ? 0 : SelectionKey.OP_READ);
+            if (closeWhenFlushed) close();
+        }
+    }
+
+    //Loop thread: read what's there and dispatch every complete frame.
+    void onReadable () throws IOException {
+        int read = largeFrame != null ? channel.read(largeFrame) : channel.read(readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        lastReceived = System.currentTimeMillis();
+
+        if (largeFrame != null) {
+            if (largeFrame.hasRemaining()) return;
+
+            largeFrame.flip();
+            decode(largeFrame);
+            largeFrame = null;
+            return;
+        }
+
+        readBuffer.flip();
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < HEADER_BYTES || length > NodeConfig.MAX_FRAME_BYTES) {
+                throw new IOException("Bad frame length " + length + " from " + host);
+            }
+
+            if (readBuffer.remaining() >= 4 + length) {
+                readBuffer.getInt();
+                ByteBuffer frame = readBuffer.slice();
+                frame.limit(length);
+                readBuffer.position(readBuffer.position() + length);
+                decode(frame);
+            } else if (4 + length > readBuffer.capacity()) {
+                //Too big for the shared buffer, collect it separately.
+                readBuffer.getInt();
+                largeFrame = ByteBuffer.allocate(length);
+                largeFrame.put(readBuffer);
+                break;
+            } else {
+                break; //Rest of the frame is still on its way
+            }
+        }
+        readBuffer.compact();
+    }
+
+    private void decode (ByteBuffer frame) {
+        long requestId = frame.getLong();
+        byte flags = frame.get();
+        byte[] payload = new byte[frame.remaining()];
+        frame.get(payload);
+
+        dispatch(requestId, flags, payload);
+    }
+
+    //Inflating and deserializing can be expensive (a whole batch of blocks), so it never happens on the loop. Answers
+    //to our requests go to the reply decoders rather than the handler pool, since handlers may be waiting for them.
+    private void dispatch (long requestId, byte flags, byte[] payload) {
+        if ((flags & FLAG_RESPONSE) != 0) {
+            CompletableFuture<Message> response = pending.get(requestId);
+            if (response == null) return;
+
+            replyDecoders.execute(() -> {
+                try {
+                    response.complete(decodePayload(flags, payload));
+                } catch (Exception e) {
+                    response.completeExceptionally(e);
+                }
+            });
+            return;
+        }
+
+        taskQueued();
+
+        if ((flags & FLAG_EXPECTS_RESPONSE) != 0) {
+            //Requests are answered right away and in parallel. Some handlers do wait on the network (dialing a peer
+            //waits for its HELLO answer), but the answers they wait for are decoded on replyDecoders, never behind them.
+            handlers.execute(() -> {
+                try {
+                    Message msg = decodeMessage(flags, payload);
+                    if (msg == null) return;
+
+                    Message reply = node.handleMessage(this, msg);
+                    try {
+                        enqueue(encode(requestId, FLAG_RESPONSE, reply != null ? reply : new Message("ACK", null)), false);
+                    } catch (IOException ignored) {} //Connection is gone, nobody to answer
+                } finally {
+                    taskDone();
+                }
+            });
+            return;
+        }
+
+        runOrdered(() -> {
+            try {
+                Message msg = decodeMessage(flags, payload);
+                if (msg == null || msg.type.equals(KEEP_ALIVE.type)) return; //Pings only show the peer is alive
+
+                node.handleMessage(this, msg);
+            } finally {
+                taskDone();
+            }
+        });
+    }
+
+    //Backpressure. Every message from this peer that waits for (or is in) a handler counts; at MAX_PEER_BACKLOG we stop
+    //reading from its socket, so TCP slows the peer down instead of it filling our handler queue, and we read again
+    //once half of that backlog is worked off. Other peers keep being read meanwhile.
+    private void taskQueued () {
+        if (backlog.incrementAndGet() >= NodeConfig.MAX_PEER_BACKLOG && !readPaused) {
+            readPaused = true;
+            if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void taskDone () {
+        if (backlog.decrementAndGet() <= NodeConfig.MAX_PEER_BACKLOG / 2 && readPaused) {
+            loop.runOnLoop(this::resumeReading);
+        }
+    }
+
+    private void resumeReading () {
+        if (!readPaused || backlog.get() > NodeConfig.MAX_PEER_BACKLOG / 2) return;
+
+        readPaused = false;
+        if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    //A peer that sends something we can't read is broken or hostile either way, so we hang up on it.
+    private Message decodeMessage (byte flags, byte[] payload) {
+        try {
+            return decodePayload(flags, payload);
+        } catch (Exception e) {
+            log.warn("Undecodable message from %s, closing connection", describePeer());
+            close();
+            return null;
+        }
+    }
+
+    private Message decodePayload (byte flags, byte[] payload) throws Exception {
+        FlightEvents.MessageReceived event = new FlightEvents.MessageReceived();
+        event.begin();
+
+        byte[] raw = (flags & FLAG_COMPRESSED) != 0 ? inflate(payload) : payload;
+        Message msg = (Message) SerializationUtil.deserialize(raw);
+
+        stats.recordReceived(msg.type, raw.length, payload.length);
+
+        if (event.shouldCommit()) {
+            event.type = msg.type;
+            event.peer = describePeer();
+            event.bytes = raw.length;
+            event.wireBytes = payload.length;
+            event.commit();
+        }
+        return msg;
+    }
+
+    //BEST_SPEED: serialized object graphs are so repetitive that the fastest level already gets most of the gain.
+    private static byte[] deflate (byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] chunk = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //Never inflates past MAX_FRAME_BYTES, so a tiny frame can't unpack into gigabytes.
+    private static byte[] inflate (byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] chunk = new byte[16 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+
+                out.write(chunk, 0, n);
+                if (out.size() > NodeConfig.MAX_FRAME_BYTES) throw new IOException("Compressed frame too large");
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void runOrdered (Runnable task) {
+        synchronized (ordered) {
+            ordered.add(task);
+            if (orderedRunning) return;
+            orderedRunning = true;
+        }
+        handlers.execute(this::drainOrdered);
+    }
+
+    private void drainOrdered () {
+        while (true) {
+            Runnable task;
+            synchronized (ordered) {
+                task = ordered.poll();
+                if (task == null) {
+                    orderedRunning = false;
+                    return;
+                }
+            }
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("Handler for %s failed", describePeer(), e);
+            }
+        }
+    }
+
+    //Closes once everything already queued went out, used for a polite DISCONNECT.
+    public void closeWhenFlushed () {
+        synchronized (writeQueue) {
+            if (writeQueue.isEmpty()) {
+                close();
+            } else {
+                closeWhenFlushed = true;
+            }
+        }
+    }
+
+    public void close () {
+        if (!closed.compareAndSet(false, true)) return;
+
+        try {
+            channel.close(); //Also cancels the selection key
+        } catch (IOException ignored) {}
+
+        connected.completeExceptionally(new IOException("Connection closed"));
+        for (CompletableFuture<Message> response : pending.values()) {
+            response.completeExceptionally(new IOException("Connection closed"));
+        }
+
+        loop.forget(this);
+        node.connectionClosed(this);
+    }
+
+    public boolean isOpen () {
+        return !closed.get();
+    }
+
+    boolean isConnected () {
+        return connected.isDone() && !connected.isCompletedExceptionally();
+    }
+
+    public void markKnown (String hash) {
+        knownInventory.add(hash);
+    }
+
+    public boolean knows (String hash) {
+        return knownInventory.mightContain(hash);
+    }
+
+    public PeerLimits getLimits () {
+        return limits;
+    }
+
+    //Called once the handshake showed both sides can handle compressed frames.
+    public void setCompression (boolean compressOutgoing) {
+        this.compressOutgoing = compressOutgoing;
+    }
+
+    public boolean isCompressing () {
+        return compressOutgoing;
+    }
+
+    //Called once the peer told us which port it listens on.
+    public void setPeerPort (int peerPort) {
+        this.peerPort = peerPort;
+    }
+
+    public int getPeerPort () {
+        return peerPort;
+    }
+
+    //host:port for events; the port is -1 until the peer's HELLO told us which port it listens on.
+    String describePeer () {
+        return host + ":" + peerPort;
+    }
+
+    //True if frames are waiting but the peer hasn't taken a single byte of them for SEND_TIMEOUT_MS.
+    boolean isSendStalled (long now) {
+        synchronized (writeQueue) {
+            return !writeQueue.isEmpty() && now - lastWriteProgress > NodeConfig.SEND_TIMEOUT_MS;
+        }
+    }
+
+    //How many gossip frames were dropped because this peer's queue was full.
+    public long getDroppedFrames () {
+        synchronized (writeQueue) {
+            return droppedFrames;
+        }
+    }
+
+    long getCreatedAt () {
+        return createdAt;
+    }
+
+    long getLastReceived () {
+        return lastReceived;
+    }
+
+    long getLastSent () {
+        return lastSent;
+    }
+
+    private static final class OutFrame {
+        final ByteBuffer buffer;
+        final boolean droppable;
+
+        OutFrame (ByteBuffer buffer, boolean droppable) {
+            this.buffer = buffer;
+            this.droppable = droppable;
+        }
+    }
+}
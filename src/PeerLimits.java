@@ -0,0 +1,45 @@
+/*
+ * Gavin MacFadyen
+ *
+ * What one peer is allowed to send us and how well it behaved so far. Every message costs a token from the general
+ * bucket, transactions and blocks also from their own (a NEW_TX_BATCH costs one per transaction), so a single peer
+ * can't flood us with work no matter how it packs it. Messages over the limit are dropped.
+ *
+ * Misbehaviour (going over a limit, sending invalid blocks or transactions) adds points; the node bans a peer once it
+ * reaches NodeConfig.BAN_SCORE.
+*/
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PeerLimits {
+    private final TokenBucket messages = new TokenBucket(NodeConfig.MESSAGE_RATE, NodeConfig.MESSAGE_RATE * 5);
+    private final TokenBucket transactions = new TokenBucket(NodeConfig.TX_RATE, NodeConfig.TX_RATE * 5);
+    private final TokenBucket blocks = new TokenBucket(NodeConfig.BLOCK_RATE, NodeConfig.BLOCK_RATE * 20);
+
+    private final AtomicInteger score = new AtomicInteger();
+
+    public boolean allow (Message msg) {
+        if (!messages.tryTake(1)) return false;
+
+        switch (msg.type) {
+            case "NEW_TX":
+                return transactions.tryTake(1);
+            case "NEW_TX_BATCH":
+                return transactions.tryTake(msg.data instanceof List ? ((List<?>) msg.data).size() : 1);
+            case "NEW_BLOCK":
+            case "CMPCT_BLOCK":
+                return blocks.tryTake(1);
+            default:
+                return true;
+        }
+    }
+
+    //Adds misbehaviour points and returns the new total.
+    public int misbehaved (int points) {
+        return score.addAndGet(points);
+    }
+
+    public int getScore () {
+        return score.get();
+    }
+}
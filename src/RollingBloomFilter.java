@@ -0,0 +1,151 @@
+/*
+ * Gavin MacFadyen
+ *
+ * A fixed-size "have I seen this recently?" filter for gossip dedup. It is a ring of Bloom filters (generations):
+ * new keys go into the newest generation, lookups check all of them, and the oldest generation is wiped and reused
+ * every horizon / (GENERATIONS - 1). A key is therefore remembered for at least the horizon and memory never grows.
+ * If a generation fills up before its time slice ends it is rotated early, which keeps the false positive rate
+ * bounded under bursts at the cost of a shorter memory.
+ *
+ * Like any Bloom filter it can answer "maybe" for a key it never saw, but never "no" for one it did.
+*/
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RollingBloomFilter {
+    private static final int GENERATIONS = 4;
+
+    private final long[][] bits;
+    private final int[] counts;
+    private final long numBits;
+    private final int numHashes;
+    private final int generationCapacity;
+    private final long sliceMs;
+
+    //Random per-node seed, so nobody can precompute keys that collide in our filter.
+    private final long seed = ThreadLocalRandom.current().nextLong();
+
+    private int current = 0;
+    private long generationStart;
+    private long earlyRotations = 0;
+
+    public RollingBloomFilter (int capacity, double falsePositiveRate, long horizonMs) {
+        //Each live generation holds a share of the keys, and the union of all of them must stay under the target rate.
+        this.generationCapacity = Math.max(1, (int) Math.ceil(capacity / (double) (GENERATIONS - 1)));
+        double generationRate = falsePositiveRate / GENERATIONS;
+
+        long m = (long) Math.ceil(-generationCapacity * Math.log(generationRate) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(64, (m + 63) / 64 * 64);
+        this.numHashes = Math.max(1, (int) Math.round(numBits / (double) generationCapacity * Math.log(2)));
+
+        this.bits = new long[GENERATIONS][(int) (numBits / 64)];
+        this.counts = new int[GENERATIONS];
+        this.sliceMs = Math.max(1, horizonMs / (GENERATIONS - 1));
+        this.generationStart = System.currentTimeMillis();
+    }
+
+    public synchronized void add (String key) {
+        rotateIfNeeded();
+
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long[] gen = bits[current];
+
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            gen[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        counts[current]++;
+    }
+
+    public synchronized boolean mightContain (String key) {
+        rotateIfNeeded();
+
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+
+        for (int g = 0; g < GENERATIONS; g++) {
+            if (counts[g] == 0) continue;
+
+            long[] gen = bits[g];
+            boolean all = true;
+            for (int i = 0; i < numHashes && all; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+                all = (gen[(int) (bit >>> 6)] & (1L << bit)) != 0;
+            }
+            if (all) return true;
+        }
+        return false;
+    }
+
+    //Forgets every key at once, for entries that stop being true at some event rather than with age.
+    public synchronized void clear () {
+        for (long[] gen : bits) Arrays.fill(gen, 0L);
+        Arrays.fill(counts, 0);
+        current = 0;
+        generationStart = System.currentTimeMillis();
+    }
+
+    //Moves on to the next generation when the time slice is over or the current one is full.
+    private void rotateIfNeeded () {
+        long now = System.currentTimeMillis();
+        boolean expired = now - generationStart >= sliceMs;
+        boolean full = counts[current] >= generationCapacity;
+        if (!expired && !full) return;
+
+        if (full && !expired) earlyRotations++;
+
+        //If we were idle for several slices, every generation in between is stale too.
+        long slices = expired ? Math.min(GENERATIONS, (now - generationStart) / sliceMs) : 1;
+        for (long i = 0; i < slices; i++) {
+            current = (current + 1) % GENERATIONS;
+            Arrays.fill(bits[current], 0L);
+            counts[current] = 0;
+        }
+        generationStart = now;
+    }
+
+    //64-bit FNV-1a over the characters, finished with a murmur-style mix so both halves are usable as hashes.
+    private long hash (String key) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //Probability that a key we never added is reported as seen, given how full each generation currently is.
+    public synchronized double estimatedFalsePositiveRate () {
+        double miss = 1.0;
+        for (int g = 0; g < GENERATIONS; g++) {
+            double p = Math.pow(1 - Math.exp(-numHashes * (double) counts[g] / numBits), numHashes);
+            miss *= 1 - p;
+        }
+        return 1 - miss;
+    }
+
+    public long memoryBytes () {
+        return GENERATIONS * numBits / 8;
+    }
+
+    public synchronized int size () {
+        int total = 0;
+        for (int count : counts) total += count;
+        return total;
+    }
+
+    public synchronized String describe () {
+        return String.format(
+            "Seen filter: %d entries | est. false positive rate %.2e | %d KB | %d early rotations",
+            size(), estimatedFalsePositiveRate(), memoryBytes() / 1024, earlyRotations
+        );
+    }
+}
@@ -1,9 +1,11 @@
 /*
  * Gavin MacFadyen
  *
- * Helper for turning objects into a consistent serialized form for hashing.
+ * Helper for turning objects into a consistent serialized form for hashing, and back again for network frames.
  */
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
 public class SerializationUtil {
@@ -23,5 +25,10 @@ public class SerializationUtil {
             throw new RuntimeException(e);
         }
     }
-}
 
+    public static Object deserialize(byte[] data) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+}
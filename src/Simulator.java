@@ -0,0 +1,422 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Runs a whole network of nodes inside one JVM on loopback ports. The nodes are wired into a topology, a steady
+ * transaction load is kept going and blocks are mined at random nodes. At the end it reports how fast blocks and
+ * transactions spread, how many blocks went stale, how often chains reorganized, and the throughput. Usage:
+ *     java Simulator [--nodes 8] [--topology ring] [--seconds 120] [--tx-rate 10] [--block-interval 15]
+ *                    [--coins 200] [--port 19000] [--seed 1] [--verbose]
+ * Topologies: line, ring, star, mesh, random:<k> (a ring plus random links until every node has about k peers).
+ *
+ * Every node starts from the same premined block that gives each of them --coins coins, so the load can start right
+ * away instead of waiting for mining rewards. Node output is hidden unless --verbose is given. The simulator refuses
+ * ports that already have a blockchain_<port>.dat, and deletes the files it created (keys, chain and tx index) when
+ * it is done.
+*/
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Simulator {
+    private static final String HOST = "127.0.0.1";
+
+    //Options
+    private int nodeCount = 8;
+    private String topology = "ring";
+    private int seconds = 120;
+    private double txRate = 10;
+    private double blockInterval = 15;
+    private int coins = 200;
+    private int basePort = 19000;
+    private long seed = 1;
+    private boolean verbose = false;
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<PublicKey> keys = new ArrayList<>();
+    private final List<File> created = new ArrayList<>();
+    private Random random;
+    private PrintStream out = System.out;
+
+    private final Spread blocks = new Spread();
+    private final Spread txs = new Spread();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong noFunds = new AtomicLong();
+    private final AtomicLong miningAttempts = new AtomicLong();
+    private final AtomicInteger reorgs = new AtomicInteger();
+    private final AtomicInteger deepestReorg = new AtomicInteger();
+
+    private final Set<Node> mining = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    public static void main (String[] args) throws Exception {
+        //Hundreds of metrics endpoints would only get in the way, unless asked for.
+        if (System.getProperty("chint.metricsPortOffset") == null) System.setProperty("chint.metricsPortOffset", "0");
+
+        Simulator sim = new Simulator();
+        try {
+            sim.parse(args);
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: java Simulator [--nodes n] [--topology line|ring|star|mesh|random:k] [--seconds s]");
+            System.out.println("                      [--tx-rate tx/s] [--block-interval s] [--coins n] [--port p] [--seed n] [--verbose]");
+            return;
+        }
+
+        try {
+            sim.run();
+        } finally {
+            sim.cleanup();
+        }
+        System.exit(0);
+    }
+
+    private void parse (String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (name.equals("--verbose")) {
+                verbose = true;
+                continue;
+            }
+            if (i + 1 == args.length) throw new IllegalArgumentException("Missing value for " + name);
+
+            String value = args[++i];
+            try {
+                switch (name) {
+                    case "--nodes" -> nodeCount = Integer.parseInt(value);
+                    case "--topology" -> topology = value;
+                    case "--seconds" -> seconds = Integer.parseInt(value);
+                    case "--tx-rate" -> txRate = Double.parseDouble(value);
+                    case "--block-interval" -> blockInterval = Double.parseDouble(value);
+                    case "--coins" -> coins = Integer.parseInt(value);
+                    case "--port" -> basePort = Integer.parseInt(value);
+                    case "--seed" -> seed = Long.parseLong(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + name + ": " + value);
+            }
+        }
+
+        if (nodeCount < 2) throw new IllegalArgumentException("Need at least 2 nodes");
+        if (txRate < 0 || blockInterval <= 0 || seconds <= 0) throw new IllegalArgumentException("Rates and durations must be positive");
+        random = new Random(seed);
+    }
+
+    private void run () throws Exception {
+        for (int i = 0; i < nodeCount; i++) {
+            if (new File("blockchain_" + (basePort + i) + ".dat").exists()) {
+                throw new IllegalStateException("blockchain_" + (basePort + i) + ".dat already exists, pick another --port");
+            }
+        }
+
+        List<int[]> links = links();
+        out.println("Starting " + nodeCount + " nodes on ports " + basePort + "-" + (basePort + nodeCount - 1)
+                + ", " + topology + " topology with " + links.size() + " links");
+        if (!verbose) System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        startNodes();
+        premine();
+
+        for (int[] link : links) {
+            nodes.get(link[0]).syncWithPeer(HOST, basePort + link[1]);
+        }
+
+        for (Node node : nodes) {
+            node.setListener(new Recorder());
+        }
+
+        out.println("Running for " + seconds + " s: " + txRate + " tx/s, a block every " + blockInterval + " s on average");
+        long start = System.nanoTime();
+
+        ScheduledExecutorService load = Executors.newSingleThreadScheduledExecutor();
+        if (txRate > 0) load.scheduleAtFixedRate(this::submitTransaction, 0, (long) (1e9 / txRate), TimeUnit.NANOSECONDS);
+
+        ExecutorService miners = Executors.newCachedThreadPool();
+        Thread scheduler = new Thread(() -> scheduleMining(miners), "sim-mining");
+        scheduler.start();
+
+        long end = start + seconds * 1_000_000_000L;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(10_000, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+            progress(start);
+        }
+
+        //Stop the load, cancel the mining rounds still running, then give the network a moment to agree.
+        running = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        load.shutdownNow();
+        scheduler.interrupt();
+        int unfinished = mining.size();
+        for (Node node : nodes) {
+            node.cancelMining();
+        }
+        miners.shutdown();
+        miners.awaitTermination(5, TimeUnit.SECONDS);
+
+        long settleStart = System.nanoTime();
+        while (!tipsAgree() && System.nanoTime() - settleStart < 15_000_000_000L) {
+            Thread.sleep(100);
+        }
+        double settle = (System.nanoTime() - settleStart) / 1e9;
+
+        report(elapsed, settle, unfinished);
+
+        for (Node node : nodes) {
+            node.disconnect();
+        }
+        System.setOut(out);
+    }
+
+    //Index pairs of the nodes to connect; the first of each pair dials the second.
+    private List<int[]> links () {
+        List<int[]> links = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int n = nodeCount;
+
+        if (topology.equals("line") || topology.equals("ring") || topology.startsWith("random:")) {
+            for (int i = 0; i + 1 < n; i++) addLink(links, seen, i, i + 1);
+            if (!topology.equals("line") && n > 2) addLink(links, seen, n - 1, 0);
+        } else if (topology.equals("star")) {
+            for (int i = 1; i < n; i++) addLink(links, seen, i, 0);
+        } else if (topology.equals("mesh")) {
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) addLink(links, seen, i, j);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown topology " + topology);
+        }
+
+        if (topology.startsWith("random:")) {
+            int degree;
+            try {
+                degree = Math.min(Integer.parseInt(topology.substring(7)), n - 1);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad topology " + topology + ", expected random:<k>");
+            }
+
+            int[] peers = new int[n];
+            for (int[] link : links) {
+                peers[link[0]]++;
+                peers[link[1]]++;
+            }
+            for (int tries = 0; tries < n * degree * 10; tries++) {
+                int a = random.nextInt(n);
+                int b = random.nextInt(n);
+                if (a == b || peers[a] >= degree || peers[b] >= degree) continue;
+                if (addLink(links, seen, a, b)) {
+                    peers[a]++;
+                    peers[b]++;
+                }
+            }
+        }
+        return links;
+    }
+
+    private static boolean addLink (List<int[]> links, Set<String> seen, int a, int b) {
+        if (!seen.add(Math.min(a, b) + "-" + Math.max(a, b))) return false;
+        links.add(new int[] {a, b});
+        return true;
+    }
+
+    private void startNodes () throws Exception {
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+
+        for (int i = 0; i < nodeCount; i++) {
+            int port = basePort + i;
+            File keyFile = new File("keys_" + port + ".dat");
+            if (!keyFile.exists()) created.add(keyFile);
+            created.add(new File("blockchain_" + port + ".dat"));
+            created.add(new File("txindex_" + port + ".dat"));
+
+            Node node = new Node(port);
+            node.start();
+            nodes.add(node);
+            keys.add(keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(node.getPublicKeyBase64()))));
+        }
+    }
+
+    //One mined block on top of genesis that pays every node its coins, installed on every node before they connect.
+    private void premine () {
+        Block genesis = nodes.get(0).getBlockchain().getBlock(0);
+
+        List<TransactionOutput> outputs = new ArrayList<>();
+        for (PublicKey key : keys) {
+            for (int i = 0; i < coins; i++) outputs.add(new TransactionOutput(key, 1));
+        }
+        Transaction funding = new Transaction(keys.get(0), List.of(), outputs);
+        funding.signature = new byte[0];
+
+        Block block = new Block(1, genesis.hash);
+        block.transactions.add(funding);
+        block.hash = block.computeHash();
+        while (!block.hash.startsWith("0".repeat(5))) {
+            block.nonce++;
+            block.hash = block.computeHash();
+        }
+
+        for (Node node : nodes) {
+            if (node.getBlockchain().maybeReplaceChain(new ArrayList<>(List.of(genesis, block))) == null) {
+                throw new IllegalStateException("node " + node.getPort() + " refused the premined block");
+            }
+        }
+    }
+
+    //One payment of 1 coin from a random node to another. A node without a free coin passes its turn to the next one.
+    private void submitTransaction () {
+        int from = random.nextInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            Node sender = nodes.get((from + i) % nodeCount);
+            int to = (from + i + 1 + random.nextInt(nodeCount - 1)) % nodeCount;
+
+            try {
+                Transaction tx = sender.createTransaction(keys.get(to), 1);
+                sender.addTransactionToMempool(tx);
+                sender.broadcastTransaction(tx);
+                submitted.incrementAndGet();
+                return;
+            } catch (Exception e) {
+                //Insufficient funds (or lost a race with a block), try the next node
+            }
+        }
+        noFunds.incrementAndGet();
+    }
+
+    //Blocks are found at random intervals (exponential, like real mining) by a random node. Two nodes may be mining at
+    //the same time, which is where forks come from; a node that is still busy with its last block is skipped.
+    private void scheduleMining (ExecutorService miners) {
+        while (running) {
+            try {
+                Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * blockInterval * 1000));
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!running) return;
+
+            Node miner = nodes.get(random.nextInt(nodeCount));
+            if (!mining.add(miner)) continue;
+
+            miners.execute(() -> {
+                try {
+                    miningAttempts.incrementAndGet();
+                    miner.mineFromMempool();
+                } catch (Exception e) {
+                    //Counted as stale below
+                } finally {
+                    mining.remove(miner);
+                }
+            });
+        }
+    }
+
+    private boolean tipsAgree () {
+        String tip = nodes.get(0).getBlockchain().getLatestBlock().hash;
+        for (Node node : nodes) {
+            if (!node.getBlockchain().getLatestBlock().hash.equals(tip)) return false;
+        }
+        return true;
+    }
+
+    private void progress (long start) {
+        int low = Integer.MAX_VALUE, high = 0;
+        for (Node node : nodes) {
+            int height = node.getBlockchain().length() - 1;
+            low = Math.min(low, height);
+            high = Math.max(high, height);
+        }
+        out.printf("[%4ds] heights %d-%d, %d tx submitted, %d blocks mined, %d reorgs%n",
+                (System.nanoTime() - start) / 1_000_000_000L, low, high, submitted.get(), blocks.origins.size(), reorgs.get());
+    }
+
+    private void report (double elapsed, double settle, int unfinished) {
+        //The longest chain around is the one the network converges on.
+        Blockchain best = nodes.get(0).getBlockchain();
+        for (Node node : nodes) {
+            if (node.getBlockchain().length() > best.length()) best = node.getBlockchain();
+        }
+
+        long confirmed = 0;
+        for (int height = 2; height < best.length(); height++) {
+            confirmed += best.getBlock(height).transactions.size() - 1; //Coinbase isn't load
+        }
+
+        int mined = blocks.origins.size();
+        int stale = 0;
+        for (String hash : blocks.origins.keySet()) {
+            if (!best.containsBlock(hash)) stale++;
+        }
+
+        out.println();
+        out.printf("Simulated %d nodes (%s) for %.1f s%n", nodeCount, topology, elapsed);
+        out.printf("Transactions: %d submitted (%.1f/s), %d confirmed (%.1f/s), %d skipped for lack of funds%n",
+                submitted.get(), submitted.get() / elapsed, confirmed, confirmed / elapsed, noFunds.get());
+        out.println("Tx propagation:    " + latency(txs.arrivals) + ", reached all nodes: " + latency(txs.complete));
+        out.printf("Blocks: %d mined (%.2f/min), %d stale (%.1f%%), %d mining attempts lost the race, %d cancelled at the end%n",
+                mined, mined * 60 / elapsed, stale, mined == 0 ? 0 : stale * 100.0 / mined,
+                Math.max(0, miningAttempts.get() - mined - unfinished), unfinished);
+        out.println("Block propagation: " + latency(blocks.arrivals) + ", reached all nodes: " + latency(blocks.complete));
+        out.printf("Reorgs: %d (%.2f/min across all nodes), deepest %d blocks%n", reorgs.get(), reorgs.get() * 60 / elapsed, deepestReorg.get());
+        out.println(tipsAgree()
+                ? String.format("All nodes agree on height %d after %.1f s", best.length() - 1, settle)
+                : "Nodes still disagree on the tip after " + String.format("%.1f", settle) + " s");
+    }
+
+    private static String latency (Histogram h) {
+        if (h.count() == 0) return "n=0";
+        return String.format("n=%d p50 %.1f p90 %.1f p99 %.1f max %.1f ms", h.count(),
+                h.quantile(0.5) / 1e6, h.quantile(0.9) / 1e6, h.quantile(0.99) / 1e6, h.max() / 1e6);
+    }
+
+    private void cleanup () {
+        for (File file : created) {
+            file.delete();
+        }
+    }
+
+    //When each node first got each block (or tx), relative to the first node that had it.
+    private class Spread {
+        final Map<String, Long> origins = new ConcurrentHashMap<>();
+        final Map<String, AtomicInteger> reached = new ConcurrentHashMap<>();
+        final Set<String> seen = ConcurrentHashMap.newKeySet();
+        final Histogram arrivals = new Histogram();
+        final Histogram complete = new Histogram();
+
+        void seen (Node node, String hash) {
+            long now = System.nanoTime();
+            if (!seen.add(node.getPort() + ":" + hash)) return; //Connected again after a reorg
+
+            Long origin = origins.putIfAbsent(hash, now);
+            if (origin == null) return;
+
+            arrivals.record(now - origin);
+            if (reached.computeIfAbsent(hash, h -> new AtomicInteger()).incrementAndGet() == nodeCount - 1) {
+                complete.record(now - origin);
+            }
+        }
+    }
+
+    private class Recorder implements NodeListener {
+        @Override
+        public void blockConnected (Node node, Block block) {
+            blocks.seen(node, block.hash);
+        }
+
+        @Override
+        public void transactionAccepted (Node node, Transaction tx) {
+            txs.seen(node, tx.txId);
+        }
+
+        @Override
+        public void chainReorganized (Node node, ChainReorg reorg) {
+            reorgs.incrementAndGet();
+            deepestReorg.accumulateAndGet(reorg.disconnected.size(), Math::max);
+        }
+    }
+}
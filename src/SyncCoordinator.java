@@ -0,0 +1,98 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Decides when we sync and with whom. Every "a peer seems to be ahead of us" signal (a block that doesn't fit on our
+ * chain, a compact block whose parent we don't know) lands here as a trigger and returns right away, so gossip
+ * handlers never wait for a sync. Triggers are merged: while a sync runs, only the best tip announced in the meantime
+ * is remembered, together with every peer that announced it. When the running sync is done we go after that tip,
+ * unless the sync already got us there. A sync runs on a single background thread, so there is never more than one
+ * at a time.
+*/
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SyncCoordinator {
+    private static final Log log = Log.get("sync");
+
+    private final ChainSync chainSync;
+    private final Blockchain blockchain;
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "sync-coordinator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    //Best tip announced since the last sync started, or null. Guarded by this.
+    private Target pending;
+    private boolean scheduled = false;
+
+    public SyncCoordinator (ChainSync chainSync, Blockchain blockchain) {
+        this.chainSync = chainSync;
+        this.blockchain = blockchain;
+    }
+
+    //A peer claims a tip at this height that we don't have. Never blocks.
+    public synchronized void trigger (String host, int port, int height, String tipHash) {
+        if (port < 0 || height < blockchain.length()) return; //Our chain is at least as long already
+
+        if (pending == null || height > pending.height) {
+            pending = new Target(height, tipHash);
+        }
+        if (pending.hash.equals(tipHash)) {
+            pending.addSource(host, port);
+        }
+
+        if (!scheduled) {
+            scheduled = true;
+            worker.execute(this::drain);
+        }
+    }
+
+    private void drain () {
+        while (true) {
+            Target target;
+            synchronized (this) {
+                target = pending;
+                pending = null;
+                if (target == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+
+            //An earlier sync may already have brought us there.
+            if (blockchain.containsBlock(target.hash) || target.height < blockchain.length()) continue;
+
+            //Ask the peers that announced this tip, first one first, until one of them gets us there.
+            for (Peer source : target.sources) {
+                try {
+                    chainSync.syncWith(source.host, source.port);
+                } catch (Exception e) {
+                    log.warn("Sync with %s:%d failed: %s", source.host, source.port, e.getMessage());
+                }
+                if (blockchain.containsBlock(target.hash)) break;
+            }
+        }
+    }
+
+    private static class Target {
+        final int height;
+        final String hash;
+        final List<Peer> sources = new ArrayList<>();
+
+        Target (int height, String hash) {
+            this.height = height;
+            this.hash = hash;
+        }
+
+        void addSource (String host, int port) {
+            for (Peer source : sources) {
+                if (source.host.equals(host) && source.port == port) return;
+            }
+            sources.add(new Peer(host, port));
+        }
+    }
+}
@@ -1,22 +1,97 @@
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 /**
  * @author Brandon Kuciapski
- * Redirects System.out / System.err into a JTextArea
+ * Redirects System.out / System.err into a JTextArea.
+ * Writes only decode the bytes (UTF-8, sequences split across writes are kept until complete) into a pending buffer;
+ * a Swing timer moves that buffer into the text area in one append every FLUSH_MS, so a long listing costs a few
+ * EDT events instead of one per byte. The text area keeps only its last maxLines lines, and the pending buffer is
+ * capped too, so memory stays bounded however long the node runs.
  */
 public class TextAreaOutputStream extends OutputStream {
 
+    public static final int DEFAULT_MAX_LINES = 5000;
+    private static final int FLUSH_MS = 50;
+    private static final int MAX_PENDING_CHARS = 1 << 20;
+
     private final JTextArea textArea;
+    private final int maxLines;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    private final StringBuilder pending = new StringBuilder();
 
     public TextAreaOutputStream(JTextArea textArea) {
+        this(textArea, DEFAULT_MAX_LINES);
+    }
+
+    public TextAreaOutputStream(JTextArea textArea, int maxLines) {
         this.textArea = textArea;
+        this.maxLines = maxLines;
+
+        Timer timer = new Timer(FLUSH_MS, e -> flushToTextArea());
+        timer.setCoalesce(true);
+        timer.start();
     }
 
     @Override
     public void write(int b) {
-        SwingUtilities.invokeLater(() ->
-                textArea.append(String.valueOf((char) b))
-        );
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, bytes.remaining());
+            bytes.put(b, off, n);
+            off += n;
+            len -= n;
+
+            //Never more chars than bytes in UTF-8, so this always fits; an unfinished sequence stays in bytes.
+            bytes.flip();
+            decoder.decode(bytes, chars, false);
+            bytes.compact();
+
+            chars.flip();
+            pending.append(chars);
+            chars.clear();
+        }
+
+        //Nobody could read that much before it scrolls out anyway.
+        if (pending.length() > MAX_PENDING_CHARS) {
+            pending.delete(0, pending.length() - MAX_PENDING_CHARS / 2);
+        }
+    }
+
+    //On the EDT: one append for everything written since the last tick, then drop the oldest lines over the cap.
+    private void flushToTextArea() {
+        String text;
+        synchronized (this) {
+            if (pending.length() == 0) return;
+            text = pending.toString();
+            pending.setLength(0);
+        }
+
+        textArea.append(text);
+
+        int excess = textArea.getLineCount() - maxLines;
+        if (excess > 0) {
+            try {
+                textArea.replaceRange(null, 0, textArea.getLineStartOffset(excess));
+            } catch (BadLocationException ignored) {
+                //Can't happen, excess < line count
+            }
+        }
+        textArea.setCaretPosition(textArea.getDocument().getLength());
     }
 }
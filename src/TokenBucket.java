@@ -0,0 +1,30 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Classic token bucket: fills up at a steady rate to at most burst tokens, and every action takes some. Lets short
+ * bursts through while holding the average to the rate.
+*/
+public class TokenBucket {
+    private final double ratePerMs;
+    private final double burst;
+
+    private double tokens;
+    private long lastRefill = System.currentTimeMillis();
+
+    public TokenBucket (double ratePerSecond, double burst) {
+        this.ratePerMs = ratePerSecond / 1000.0;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    //Takes cost tokens if there are enough, otherwise takes nothing and returns false.
+    public synchronized boolean tryTake (double cost) {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerMs);
+        lastRefill = now;
+
+        if (tokens < cost) return false;
+        tokens -= cost;
+        return true;
+    }
+}
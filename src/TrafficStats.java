@@ -0,0 +1,67 @@
+/*
+ * Gavin MacFadyen
+ *
+ * Per message type counters for everything that goes over our peer connections: how many messages, how many bytes
+ * they serialize to, and how many bytes actually went over the wire after compression. Updated from the handler and
+ * network threads without locking.
+*/
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class TrafficStats {
+    private final Map<String, Counters> sent = new ConcurrentHashMap<>();
+    private final Map<String, Counters> received = new ConcurrentHashMap<>();
+
+    //Answers and keep-alives, which aren't in Node.MESSAGE_TYPES because handleMessage never sees them.
+    private static final Set<String> REPLY_TYPES = Set.of("ACK", "HEADERS", "BLOCKS", "BLOCK_TXN", "PROOF", "PING");
+
+    public void recordSent (String type, int rawBytes, int wireBytes) {
+        sent.computeIfAbsent(row(type), t -> new Counters()).add(rawBytes, wireBytes);
+    }
+
+    public void recordReceived (String type, int rawBytes, int wireBytes) {
+        received.computeIfAbsent(row(type), t -> new Counters()).add(rawBytes, wireBytes);
+    }
+
+    //The peer picks the type of what it sends us, so types we don't know share one row instead of each getting its own.
+    private static String row (String type) {
+        if (type == null) return "other";
+        return Node.MESSAGE_TYPES.contains(type) || REPLY_TYPES.contains(type) ? type : "other";
+    }
+
+    public String describe () {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-4s %-14s %8s %8s %12s %12s %6s%n", "dir", "type", "msgs", "deflated", "raw bytes", "wire bytes", "ratio"));
+        appendRows(out, "out", sent);
+        appendRows(out, "in", received);
+        return out.toString();
+    }
+
+    private static void appendRows (StringBuilder out, String direction, Map<String, Counters> counters) {
+        for (Map.Entry<String, Counters> entry : new TreeMap<>(counters).entrySet()) {
+            Counters c = entry.getValue();
+            long raw = c.rawBytes.sum();
+            long wire = c.wireBytes.sum();
+
+            out.append(String.format("%-4s %-14s %8d %8d %12d %12d %6.2f%n", direction, entry.getKey(),
+                    c.messages.sum(), c.compressed.sum(), raw, wire, raw == 0 ? 1.0 : wire / (double) raw));
+        }
+    }
+
+    private static class Counters {
+        final LongAdder messages = new LongAdder();
+        final LongAdder compressed = new LongAdder();
+        final LongAdder rawBytes = new LongAdder();
+        final LongAdder wireBytes = new LongAdder();
+
+        void add (int raw, int wire) {
+            messages.increment();
+            if (wire < raw) compressed.increment();
+            rawBytes.add(raw);
+            wireBytes.add(wire);
+        }
+    }
+}
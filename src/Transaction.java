@@ -36,6 +36,11 @@ public class Transaction implements Serializable {
         return HashUtil.sha256(getDataToSign());
     }
 
+    //Whether txId really is the hash of this transaction's contents, for anyone handed a transaction by its id.
+    public boolean hasValidId() {
+        return txId != null && txId.equals(computeHash());
+    }
+
     public void sign(PrivateKey privateKey) throws Exception {
         Signature sig = Signature.getInstance("SHA256withRSA");
         sig.initSign(privateKey);
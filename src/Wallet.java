@@ -0,0 +1,152 @@
+/*
+ * Gavin MacFadyen
+ *
+ * This node's own coins, kept up to date as blocks and transactions come and go instead of being searched for in the
+ * UTXO set (which holds everybody's coins) every time we pay someone or show the balance.
+ *
+ * Confirmed coins follow the chain: Blockchain tells us about every block connected and disconnected (ChainObserver).
+ * Pending transactions follow the mempool (Mempool.Observer): coins a pending transaction of ours spends are locked
+ * so we don't pick them twice, and outputs a pending transaction pays us count towards the unconfirmed balance.
+*/
+import java.security.PublicKey;
+import java.util.*;
+
+public class Wallet implements ChainObserver, Mempool.Observer {
+    private final PublicKey owner;
+
+    private final Map<String, TransactionOutput> coins = new HashMap<>();        //Ours and unspent on our chain
+    private final Map<String, TransactionOutput> spentCoins = new HashMap<>();   //Ours, spent on our chain (for reorgs)
+    private final Map<String, Transaction> pending = new HashMap<>();            //Mempool transactions that touch us
+    private final Map<String, String> locked = new HashMap<>();                  //outputId -> txId of the pending spend
+    private long confirmedBalance = 0;
+
+    public Wallet (PublicKey owner) {
+        this.owner = owner;
+    }
+
+    //Attached once at startup: the wallet isn't saved, it is built from the chain like the UTXO set.
+    @Override
+    public synchronized void catchUp (List<Block> chain) {
+        coins.clear();
+        spentCoins.clear();
+        confirmedBalance = 0;
+
+        for (Block block : chain) {
+            connect(block);
+        }
+    }
+
+    @Override
+    public synchronized void connect (Block block) {
+        for (Transaction tx : block.transactions) {
+            unlock(pending.remove(tx.txId)); //Confirmed now
+
+            for (TransactionInput in : tx.inputs) {
+                TransactionOutput coin = coins.remove(in.outputId);
+                if (coin != null) {
+                    spentCoins.put(coin.id, coin);
+                    confirmedBalance -= coin.amount;
+                }
+            }
+            for (TransactionOutput out : tx.outputs) {
+                if (out.recipient.equals(owner)) {
+                    coins.put(out.id, out);
+                    confirmedBalance += out.amount;
+                }
+            }
+        }
+    }
+
+    //Tip first, and within the block last transaction first, so a coin created and spent in the same block comes back
+    //before it is removed again.
+    @Override
+    public synchronized void disconnect (Block block) {
+        for (int i = block.transactions.size() - 1; i >= 0; i--) {
+            Transaction tx = block.transactions.get(i);
+
+            for (TransactionOutput out : tx.outputs) {
+                if (coins.remove(out.id) != null) confirmedBalance -= out.amount;
+            }
+            for (TransactionInput in : tx.inputs) {
+                TransactionOutput coin = spentCoins.remove(in.outputId);
+                if (coin != null) {
+                    coins.put(coin.id, coin);
+                    confirmedBalance += coin.amount;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void added (Transaction tx) {
+        boolean ours = tx.sender.equals(owner);
+        if (!ours) {
+            for (TransactionOutput out : tx.outputs) {
+                if (out.recipient.equals(owner)) {
+                    ours = true;
+                    break;
+                }
+            }
+        }
+        if (!ours) return;
+
+        pending.put(tx.txId, tx);
+        for (TransactionInput in : tx.inputs) {
+            if (coins.containsKey(in.outputId)) locked.put(in.outputId, tx.txId);
+        }
+    }
+
+    @Override
+    public synchronized void removed (Transaction tx) {
+        unlock(pending.remove(tx.txId));
+    }
+
+    private void unlock (Transaction tx) {
+        if (tx == null) return;
+        for (TransactionInput in : tx.inputs) {
+            locked.remove(in.outputId, tx.txId);
+        }
+    }
+
+    //Confirmed coins no pending transaction of ours spends yet.
+    public synchronized List<TransactionOutput> spendable () {
+        List<TransactionOutput> result = new ArrayList<>(coins.size());
+        for (TransactionOutput coin : coins.values()) {
+            if (!locked.containsKey(coin.id)) result.add(coin);
+        }
+        return result;
+    }
+
+    //Coins for a payment of amount, chosen by the given strategy, or null if our spendable coins don't cover it.
+    public List<TransactionOutput> select (long amount, CoinSelection strategy) {
+        return strategy.select(spendable(), amount);
+    }
+
+    public synchronized long getConfirmedBalance () {
+        return confirmedBalance;
+    }
+
+    //What the confirmed balance becomes once everything pending is mined: minus the coins our pending transactions
+    //spend, plus what they (and other people's) pay us, change included.
+    public synchronized long getUnconfirmedBalance () {
+        long balance = confirmedBalance;
+        for (Map.Entry<String, String> lock : locked.entrySet()) {
+            TransactionOutput coin = coins.get(lock.getKey());
+            if (coin != null) balance -= coin.amount;
+        }
+        for (Transaction tx : pending.values()) {
+            for (TransactionOutput out : tx.outputs) {
+                if (out.recipient.equals(owner)) balance += out.amount;
+            }
+        }
+        return balance;
+    }
+
+    public synchronized int coinCount () {
+        return coins.size();
+    }
+
+    public synchronized int pendingCount () {
+        return pending.size();
+    }
+}